@@ -0,0 +1,32 @@
+package hu.plajko.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs the benchmarks with 1, 2, 4 ... threads up to the number of cores, with the GC profiler
+// for the allocation rate; the arguments are passed to JMH (e.g. benchmark name filters)
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1;; threads = Math.min(threads * 2, cores)) {
+			ChainedOptionsBuilder options = new OptionsBuilder()//
+					.parent(commandLine)//
+					.threads(threads)//
+					.addProfiler(GCProfiler.class);
+			if (commandLine.getIncludes().isEmpty())
+				options.include(CacheBenchmark.class.getSimpleName());
+			for (String include : commandLine.getIncludes())
+				options.include(include);
+			new Runner(options.build()).run();
+			if (threads == cores)
+				break;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package hu.plajko.bench;
+
+import hu.plajko.cache.ContextedCacheLoader;
+import hu.plajko.cache.ContextedKey;
+import hu.plajko.cache.ContextedLoadingCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+// the contexted wrapper against a plain LoadingCache with the same settings
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+	private static final int MAXSIZE = 10000;
+
+	// a sample context, the loader only passes it on
+	public static class LoaderContext {
+	}
+
+	@State(Scope.Benchmark)
+	public static class Caches {
+
+		@Param({ "plain", "contexted" })
+		public String cache;
+
+		// hit: every key fits in the cache, miss: ten times more keys than entries
+		@Param({ "hit", "miss" })
+		public String workload;
+
+		boolean isContexted;
+		LoadingCache<Integer, Integer> plain;
+		ContextedLoadingCache<Integer, Integer, LoaderContext> contexted;
+		int keySpace;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			isContexted = "contexted".equals(cache);
+			keySpace = "hit".equals(workload) ? MAXSIZE / 2 : MAXSIZE * 10;
+			if (isContexted) {
+				contexted = new ContextedLoadingCache<Integer, Integer, LoaderContext>(//
+						CacheBuilder.newBuilder()//
+								.maximumSize(MAXSIZE)//
+								.build(new ContextedCacheLoader<Integer, Integer, LoaderContext>() {
+									@Override
+									public Integer load(LoaderContext context, Integer key) throws Exception {
+										return key;
+									}
+								}));
+				LoaderContext context = new LoaderContext();
+				for (int i = 0; i < Math.min(keySpace, MAXSIZE); i++)
+					contexted.get(context, i);
+			} else {
+				plain = CacheBuilder.newBuilder()//
+						.maximumSize(MAXSIZE)//
+						.build(new CacheLoader<Integer, Integer>() {
+							@Override
+							public Integer load(Integer key) throws Exception {
+								return key;
+							}
+						});
+				for (int i = 0; i < Math.min(keySpace, MAXSIZE); i++)
+					plain.get(i);
+			}
+		}
+	}
+
+	// per thread random keys, generated before the measurement
+	@State(Scope.Thread)
+	public static class Keys {
+
+		final LoaderContext context = new LoaderContext();
+		private Integer[] keys;
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(Caches caches) {
+			Random r = new Random();
+			keys = new Integer[1 << 16];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = r.nextInt(caches.keySpace);
+		}
+
+		Integer next() {
+			return keys[next++ & (keys.length - 1)];
+		}
+	}
+
+	// the keys of contextedKey, which doesn't use the caches, so it isn't run for each of them
+	@State(Scope.Thread)
+	public static class KeyParts {
+
+		final LoaderContext context = new LoaderContext();
+		private Integer[] keys;
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random r = new Random();
+			keys = new Integer[1 << 16];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = r.nextInt(MAXSIZE * 10);
+		}
+
+		Integer next() {
+			return keys[next++ & (keys.length - 1)];
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Batches {
+
+		@Param({ "10", "100", "1000" })
+		public int size;
+
+		final LoaderContext context = new LoaderContext();
+		private List<List<Integer>> batches;
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(Caches caches) {
+			Random r = new Random();
+			batches = new ArrayList<List<Integer>>();
+			for (int i = 0; i < 256; i++) {
+				List<Integer> batch = new ArrayList<Integer>();
+				for (int j = 0; j < size; j++)
+					batch.add(r.nextInt(caches.keySpace));
+				batches.add(batch);
+			}
+		}
+
+		List<Integer> next() {
+			return batches.get(next++ & (batches.size() - 1));
+		}
+	}
+
+	@Benchmark
+	public Integer get(Caches caches, Keys keys) throws Exception {
+		if (caches.isContexted)
+			return caches.contexted.get(keys.context, keys.next());
+		return caches.plain.get(keys.next());
+	}
+
+	@Benchmark
+	public Map<Integer, Integer> getAll(Caches caches, Batches batches) throws Exception {
+		if (caches.isContexted)
+			return caches.contexted.getAll(batches.context, batches.next());
+		return caches.plain.getAll(batches.next());
+	}
+
+	// the key the wrapper builds for every lookup, as a baseline for the allocation numbers
+	@Benchmark
+	public ContextedKey<Integer, LoaderContext> contextedKey(KeyParts keys) {
+		return new ContextedKey<Integer, LoaderContext>(keys.next(), keys.context);
+	}
+}
@@ -1,73 +1,106 @@
 package hu.plajko;
 
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.base.Preconditions;
+
 public class Approximator {
 
 	public static interface Function {
 		public double calculate(double param0, double param1, double param2);
 	}
 
-	public Approximator(Function function, Double targetValue) {
-		this.function = function;
+	// a function that knows its derivatives, used by Solvers.newton()
+	public static interface Derivative extends Function {
+		// the derivative by the param at index
+		public double derivative(double param0, double param1, double param2, int index);
+	}
+
+	// finds the value of the param at index where the function equals targetValue, starting from
+	// the value given for it; NaN if there's no solution
+	public static interface Solver {
+		public double solve(Function function, double targetValue, double param0, double param1, double param2, int index);
+	}
+
+	public Approximator(Function function, double targetValue) {
+		this(function, targetValue, Solvers.brent());
+	}
+
+	// immutable, so an instance can be shared by threads if its function and solver can be
+	public Approximator(Function function, double targetValue, Solver solver) {
+		this.function = Preconditions.checkNotNull(function);
 		this.targetValue = targetValue;
+		this.solver = Preconditions.checkNotNull(solver);
 	}
 
-	private static final double ERR = 0.0001d;
-	private Function function = null;
-	private Double targetValue = null;
+	// the solves of a batch chunk are chained
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	private final Function function;
+	private final double targetValue;
+	private final Solver solver;
 
 	public double findSolution(Double param0, Double param1, Double param2) {
+		return findSolution(solver, param0, param1, param2);
+	}
+
+	// with a solver other than the default one of this Approximator
+	public double findSolution(Solver solver, Double param0, Double param1, Double param2) {
 		if (param0 == null && param1 != null && param2 != null)
-			return findSolution(0.0d, param1, param2, 0);
+			return findSolution(solver, 0, 0.0d, param1, param2);
 		else if (param0 != null && param1 == null && param2 != null)
-			return findSolution(param0, 0.0d, param2, 1);
+			return findSolution(solver, 1, param0, 0.0d, param2);
 		else if (param0 != null && param1 != null && param2 == null)
-			return findSolution(param0, param1, 0.0d, 2);
+			return findSolution(solver, 2, param0, param1, 0.0d);
 		throw new IllegalArgumentException("exactly one parameter must be null");
 	}
 
-	private double findSolution(double param0, double param1, double param2, int solutionIndex) {
-		double add = 1.0d;
-		Double prevDelta = null;
-		while (true) {
-			if (prevDelta != null) {
-				switch (solutionIndex) {
-				default:
-				case 0:
-					param0 += add;
-					break;
-				case 1:
-					param1 += add;
-					break;
-				case 2:
-					param2 += add;
-					break;
-				}
-			}
-			double currentValue = function.calculate(param0, param1, param2);
-			double delta = Math.abs(currentValue - this.targetValue);
-
-			if (prevDelta != null && prevDelta < delta)
-				add *= -0.1d;
-			else
-				add *= 1.1;
-
-			if (prevDelta != null && prevDelta.equals(delta)) {
-				break;
-			}
-
-			prevDelta = delta;
-		}
-		if (prevDelta > ERR)
-			return Double.NaN;
-		switch (solutionIndex) {
-		default:
-		case 0:
-			return param0;
-		case 1:
-			return param1;
-		case 2:
-			return param2;
+	// the param at index is the unknown, its value is the starting point; nothing is boxed
+	public double findSolution(int index, double param0, double param1, double param2) {
+		return findSolution(solver, index, param0, param1, param2);
+	}
+
+	public double findSolution(Solver solver, int index, double param0, double param1, double param2) {
+		Preconditions.checkElementIndex(index, 3);
+		return solver.solve(function, targetValue, param0, param1, param2, index);
+	}
+
+	// solves for the unknown at index with the params at every position of the arrays; the unknown's
+	// array is null or holds the starting points, NaN where there's none. The chunks are solved in
+	// parallel, in a chunk a solve without a start starts from the solution of the previous one, so
+	// neighbouring inputs should be adjacent.
+	public double[] findSolutions(int index, double[] params0, double[] params1, double[] params2) {
+		return findSolutions(index, params0, params1, params2, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+
+	public double[] findSolutions(int index, double[] params0, double[] params1, double[] params2, ForkJoinPool pool, int chunkSize) {
+		Preconditions.checkElementIndex(index, 3);
+		Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+		double[][] params = { params0, params1, params2 };
+		int length = -1;
+		for (int i = 0; i < params.length; i++) {
+			if (i == index && params[i] == null)
+				continue;
+			Preconditions.checkNotNull(params[i], "params%s", i);
+			Preconditions.checkArgument(length < 0 || length == params[i].length, "the param arrays must have the same length");
+			length = params[i].length;
 		}
+		double[] solutions = new double[length];
+		if (length > 0)
+			pool.invoke(new BatchSolve(function, targetValue, solver, index, params0, params1, params2, solutions, chunkSize));
+		return solutions;
+	}
+
+	public Function getFunction() {
+		return function;
+	}
+
+	public double getTargetValue() {
+		return targetValue;
+	}
+
+	public Solver getSolver() {
+		return solver;
 	}
 
-}
\ No newline at end of file
+}
@@ -50,6 +50,12 @@ public class ApproximatorTest {
 		double solution_exp = approximator.findSolution(solution_a, solution_r, null);
 		log.info("exp={}", nf.format(solution_exp));
 		log.info("(check) {} = {}", nf.format(b), nf.format(annuity.calculate(solution_a, solution_r, solution_exp)));
+
+		/** Solvers ***************************************************************************/
+		log.info("r={} (stepping)", nf.format(approximator.findSolution(Solvers.stepping(), a, null, exp)));
+		log.info("r={} (brent)", nf.format(approximator.findSolution(Solvers.brent(), a, null, exp)));
+		log.info("r={} (secant)", nf.format(approximator.findSolution(Solvers.secant(), a, null, exp)));
+		log.info("r={} (newton)", nf.format(approximator.findSolution(Solvers.newton(1e-6d, 20), a, null, exp)));
 	}
 
 }
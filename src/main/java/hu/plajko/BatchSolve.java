@@ -0,0 +1,82 @@
+package hu.plajko;
+
+import hu.plajko.Approximator.Function;
+import hu.plajko.Approximator.Solver;
+
+import java.util.concurrent.RecursiveAction;
+
+// solves the chunks of a batch in parallel; in a chunk a solve without a given start starts from the
+// solution of the previous one
+class BatchSolve extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Function function;
+	private final double targetValue;
+	private final Solver solver;
+	private final int index;
+	// the unknown's array is null or holds the starting points, NaN where there's none
+	private final double[] params0;
+	private final double[] params1;
+	private final double[] params2;
+	private final double[] solutions;
+	private final int chunkSize;
+	private final int from;
+	private final int to;
+
+	BatchSolve(Function function, double targetValue, Solver solver, int index, double[] params0, double[] params1, double[] params2,
+			double[] solutions, int chunkSize) {
+		this.function = function;
+		this.targetValue = targetValue;
+		this.solver = solver;
+		this.index = index;
+		this.params0 = params0;
+		this.params1 = params1;
+		this.params2 = params2;
+		this.solutions = solutions;
+		this.chunkSize = chunkSize;
+		this.from = 0;
+		this.to = solutions.length;
+	}
+
+	private BatchSolve(BatchSolve parent, int from, int to) {
+		this.function = parent.function;
+		this.targetValue = parent.targetValue;
+		this.solver = parent.solver;
+		this.index = parent.index;
+		this.params0 = parent.params0;
+		this.params1 = parent.params1;
+		this.params2 = parent.params2;
+		this.solutions = parent.solutions;
+		this.chunkSize = parent.chunkSize;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		int chunks = (to - from + chunkSize - 1) / chunkSize;
+		if (chunks > 1) {
+			// split at a chunk boundary, so the chunks don't depend on the number of threads
+			int middle = from + (chunks / 2) * chunkSize;
+			invokeAll(new BatchSolve(this, from, middle), new BatchSolve(this, middle, to));
+			return;
+		}
+		double previous = Double.NaN;
+		for (int i = from; i < to; i++) {
+			double param0 = param(params0, 0, i, previous);
+			double param1 = param(params1, 1, i, previous);
+			double param2 = param(params2, 2, i, previous);
+			previous = solutions[i] = solver.solve(function, targetValue, param0, param1, param2, index);
+		}
+	}
+
+	// the start of the unknown is the given one, else the previous solution, else 0
+	private double param(double[] params, int paramIndex, int i, double previous) {
+		if (paramIndex != index)
+			return params[i];
+		if (params != null && !Double.isNaN(params[i]))
+			return params[i];
+		return Double.isNaN(previous) ? 0.0d : previous;
+	}
+}
@@ -1,11 +1,15 @@
 package hu.plajko;
 
+import hu.plajko.cache.ContextedCacheBuilder;
 import hu.plajko.cache.ContextedCacheLoader;
 import hu.plajko.cache.ContextedLoadingCache;
 import hu.plajko.cache.ContextedRemovalListener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -120,6 +124,28 @@ public class CacheTest2 {
 						}
 					}));
 
+	// the loader has no value for the "missing" keys, a getAll leaves them out
+	private static ContextedLoadingCache<String, ValueClass, LoaderContext> negativeCache = //
+	ContextedCacheBuilder.<String, ValueClass, LoaderContext> from(CacheBuilder.newBuilder().maximumSize(MAXSIZE))//
+			.negativeCaching(1, 1, 10, TimeUnit.SECONDS)//
+			.build(//
+			new ContextedCacheLoader<String, ValueClass, LoaderContext>() {
+				@Override
+				public ValueClass load(LoaderContext context, String key) throws Exception {
+					return key.startsWith("missing") ? null : new ValueClass(context.getValue());
+				}
+
+				@Override
+				public Map<String, ValueClass> loadAll(LoaderContext context, Iterable<? extends String> keys) throws Exception {
+					log.debug("{} - loadAll {}", Thread.currentThread().getName(), keys);
+					Map<String, ValueClass> values = new HashMap<String, ValueClass>();
+					for (String key : keys)
+						if (!key.startsWith("missing"))
+							values.put(key, new ValueClass(context.getValue()));
+					return values;
+				}
+			});
+
 	private static interface CacheTester<K, V> {
 		public CacheStats getStats();
 
@@ -157,6 +183,19 @@ public class CacheTest2 {
 				}
 			});
 		}
+
+		testMixedGetAll();
+	}
+
+	private static void testMixedGetAll() throws Exception {
+		List<String> request = Arrays.asList("key0", "missing0", "key1", "missing1");
+		// the second getAll finds the misses tombstoned, the loader isn't called for them
+		for (int i = 0; i < 2; i++) {
+			Map<String, ValueClass> result = negativeCache.getAll(new LoaderContext(), request);
+			if (!result.keySet().equals(new HashSet<String>(Arrays.asList("key0", "key1"))))
+				throw new IllegalStateException("mixed getAll returned " + result);
+			log.info("mixed getAll: {}", result);
+		}
 	}
 
 	private static void test(final CacheTester<String, ValueClass> tester) throws InterruptedException, ExecutionException {
@@ -184,9 +223,10 @@ public class CacheTest2 {
 				public String call() throws Exception {
 					Random r = new Random();
 
-					// generate a random request
-					Collections.shuffle(keys);
-					List<String> req = keys.subList(0, 1 + r.nextInt(keys.size() - 1));
+					// generate a random request, from a copy: the tasks run in parallel
+					List<String> shuffled = new ArrayList<String>(keys);
+					Collections.shuffle(shuffled, r);
+					List<String> req = shuffled.subList(0, 1 + r.nextInt(shuffled.size() - 1));
 
 					log.debug("{} - req: {}", Thread.currentThread().getName(), req);
 					Stopwatch timer = new Stopwatch().start();
@@ -0,0 +1,356 @@
+package hu.plajko;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+// the solutions of an Approximator over a range of one param, with the third param fixed: the range is
+// sampled until linear interpolation is within the tolerance, then the lookups don't call the solver.
+// The table records what it was built for: the class of the function, the target and the arguments
+// of build(), a file is only mapped for the same ones.
+public final class InterpolationTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int MAGIC = 0x49545432; // ITT2
+	// followed by the function id, then the nodes from the next multiple of 8
+	private static final int HEADER = 72;
+	// the range is split this many times before the adaptive sampling, so a feature between two checked
+	// points of a wide range isn't missed
+	private static final int INITIAL_SEGMENTS = 16;
+	private static final int MAX_DEPTH = 40;
+
+	private final String functionId;
+	private final double targetValue;
+	private final int unknown;
+	private final int varying;
+	private final double fixed;
+	private final double tolerance;
+	private final double maxError;
+	// heap buffers when built, views of the file when mapped
+	private final DoubleBuffer xs;
+	private final DoubleBuffer ys;
+
+	private InterpolationTable(String functionId, double targetValue, int unknown, int varying, double fixed, double tolerance, double maxError,
+			DoubleBuffer xs, DoubleBuffer ys) {
+		this.functionId = functionId;
+		this.targetValue = targetValue;
+		this.unknown = unknown;
+		this.varying = varying;
+		this.fixed = fixed;
+		this.tolerance = tolerance;
+		this.maxError = maxError;
+		this.xs = xs;
+		this.ys = ys;
+	}
+
+	// the param at unknown is solved for the values of the param at varying in [from, to], the third
+	// param is fixed; tolerance is the allowed error of the interpolated solutions
+	public static InterpolationTable build(Approximator approximator, int unknown, int varying, double fixed, double from, double to,
+			double tolerance) {
+		Preconditions.checkElementIndex(unknown, 3);
+		Preconditions.checkElementIndex(varying, 3);
+		Preconditions.checkArgument(unknown != varying, "unknown and varying must be different params");
+		Preconditions.checkArgument(from < to, "from must be less than to");
+		Preconditions.checkArgument(tolerance > 0, "tolerance must be positive");
+		Sampler sampler = new Sampler(approximator, unknown, varying, fixed, tolerance);
+		double y = sampler.solve(from, 0.0d);
+		sampler.add(from, y);
+		for (int i = 1; i <= INITIAL_SEGMENTS; i++) {
+			double x = (i == INITIAL_SEGMENTS) ? to : from + (to - from) * i / INITIAL_SEGMENTS;
+			double next = sampler.solve(x, y);
+			sampler.refine(sampler.lastX(), y, x, next, 0);
+			sampler.add(x, next);
+			y = next;
+		}
+		return new InterpolationTable(functionId(approximator), approximator.getTargetValue(), unknown, varying, fixed, tolerance, sampler.maxError,
+				DoubleBuffer.wrap(Arrays.copyOf(sampler.xs, sampler.size)), DoubleBuffer.wrap(Arrays.copyOf(sampler.ys, sampler.size)));
+	}
+
+	// the class of the function: the instances of a class with settings of its own (e.g. a coefficient)
+	// are told apart by the file they're stored in only
+	private static String functionId(Approximator approximator) {
+		return approximator.getFunction().getClass().getName();
+	}
+
+	private static final class Sampler {
+
+		private final Approximator approximator;
+		private final int unknown;
+		private final int varying;
+		private final double fixed;
+		private final double tolerance;
+		private double[] xs = new double[256];
+		private double[] ys = new double[256];
+		private int size = 0;
+		private double maxError = 0.0d;
+
+		Sampler(Approximator approximator, int unknown, int varying, double fixed, double tolerance) {
+			this.approximator = approximator;
+			this.unknown = unknown;
+			this.varying = varying;
+			this.fixed = fixed;
+			this.tolerance = tolerance;
+		}
+
+		// started from a guess, e.g. a neighbour's solution
+		double solve(double x, double guess) {
+			double[] params = new double[3];
+			params[varying] = x;
+			params[unknown] = Double.isNaN(guess) ? 0.0d : guess;
+			params[3 - unknown - varying] = fixed;
+			return approximator.findSolution(unknown, params[0], params[1], params[2]);
+		}
+
+		// samples (a, b) by halving it until the midpoints are within the tolerance; a midpoint is kept
+		// as a node, so the error between the nodes is about a quarter of the checked one
+		void refine(double a, double ya, double b, double yb, int depth) {
+			double m = 0.5d * (a + b);
+			if (m <= a || m >= b)
+				return;
+			double ym = solve(m, 0.5d * (ya + yb));
+			double error = Math.abs(0.5d * (ya + yb) - ym);
+			// no solution in a part of the range, or the depth is used up: the node is kept as it is
+			if (error <= tolerance || Double.isNaN(error) || depth >= MAX_DEPTH) {
+				if (!Double.isNaN(error))
+					maxError = Math.max(maxError, error);
+				add(m, ym);
+				return;
+			}
+			refine(a, ya, m, ym, depth + 1);
+			add(m, ym);
+			refine(m, ym, b, yb, depth + 1);
+		}
+
+		void add(double x, double y) {
+			if (size == xs.length) {
+				xs = Arrays.copyOf(xs, size * 2);
+				ys = Arrays.copyOf(ys, size * 2);
+			}
+			xs[size] = x;
+			ys[size] = y;
+			size++;
+		}
+
+		double lastX() {
+			return xs[size - 1];
+		}
+	}
+
+	// the interpolated solution, NaN outside the range; O(log n), no solver calls
+	public double solve(double x) {
+		int n = xs.limit();
+		if (!(x >= xs.get(0) && x <= xs.get(n - 1)))
+			return Double.NaN;
+		// the last node not greater than x
+		int low = 0, high = n - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (xs.get(middle) <= x)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		if (low == n - 1)
+			return ys.get(low);
+		double x0 = xs.get(low), x1 = xs.get(low + 1);
+		double y0 = ys.get(low), y1 = ys.get(low + 1);
+		return y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+	}
+
+	public boolean contains(double x) {
+		return x >= lower() && x <= upper();
+	}
+
+	public double lower() {
+		return xs.get(0);
+	}
+
+	public double upper() {
+		return xs.get(xs.limit() - 1);
+	}
+
+	// the number of nodes
+	public int size() {
+		return xs.limit();
+	}
+
+	public String getFunctionId() {
+		return functionId;
+	}
+
+	public double getTargetValue() {
+		return targetValue;
+	}
+
+	public int getUnknown() {
+		return unknown;
+	}
+
+	public int getVarying() {
+		return varying;
+	}
+
+	public double getFixed() {
+		return fixed;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	// the largest error checked while sampling
+	public double getMaxError() {
+		return maxError;
+	}
+
+	public void writeTo(File file) throws IOException {
+		// written next to the old one and moved over it, a crash leaves the old table
+		File temp = new File(file.getPath() + ".tmp");
+		byte[] id = functionId.getBytes(StandardCharsets.UTF_8);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(unknown);
+			out.writeInt(varying);
+			out.writeInt(size());
+			out.writeDouble(fixed);
+			out.writeDouble(tolerance);
+			out.writeDouble(maxError);
+			out.writeDouble(targetValue);
+			out.writeDouble(lower());
+			out.writeDouble(upper());
+			out.writeInt(0); // padding
+			out.writeInt(id.length);
+			out.write(id);
+			for (int i = HEADER + id.length; i < nodesOffset(id.length); i++)
+				out.writeByte(0);
+			for (int i = 0; i < size(); i++)
+				out.writeDouble(xs.get(i));
+			for (int i = 0; i < size(); i++)
+				out.writeDouble(ys.get(i));
+		} finally {
+			out.close();
+		}
+		Files.move(temp, file);
+	}
+
+	// the table that build() would return for the same arguments; the nodes aren't read, the lookups go
+	// to the mapped file. An IOException if the file was built for something else.
+	public static InterpolationTable map(File file, Approximator approximator, int unknown, int varying, double fixed, double from, double to,
+			double tolerance) throws IOException {
+		ByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+			throw new IOException("not an interpolation table: " + file);
+		int size = buffer.getInt(12);
+		int idLength = buffer.getInt(68);
+		if (size < 1 || idLength < 0 || buffer.capacity() != nodesOffset(idLength) + 16L * size)
+			throw new IOException("truncated interpolation table: " + file);
+		byte[] id = new byte[idLength];
+		ByteBuffer idView = buffer.duplicate();
+		idView.position(HEADER);
+		idView.get(id);
+		String functionId = new String(id, StandardCharsets.UTF_8);
+		double targetValue = buffer.getDouble(40);
+		if (!functionId.equals(functionId(approximator)) || !same(targetValue, approximator.getTargetValue()) || buffer.getInt(4) != unknown
+				|| buffer.getInt(8) != varying || !same(buffer.getDouble(16), fixed) || !same(buffer.getDouble(24), tolerance)
+				|| !same(buffer.getDouble(48), from) || !same(buffer.getDouble(56), to))
+			throw new IOException("the interpolation table was built for something else: " + file);
+		int offset = nodesOffset(idLength);
+		return new InterpolationTable(functionId, targetValue, unknown, varying, fixed, tolerance, buffer.getDouble(32), //
+				nodes(buffer, offset, size), nodes(buffer, offset + 8 * size, size));
+	}
+
+	private static int nodesOffset(int idLength) {
+		return (HEADER + idLength + 7) & ~7;
+	}
+
+	// like Double.equals
+	private static boolean same(double a, double b) {
+		return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+	}
+
+	private static DoubleBuffer nodes(ByteBuffer buffer, int offset, int size) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + 8 * size);
+		return view.slice().asDoubleBuffer();
+	}
+
+	// serialized as the arrays of the nodes, a mapped table is read into the heap
+	private Object writeReplace() {
+		double[] x = new double[size()];
+		double[] y = new double[size()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = xs.get(i);
+			y[i] = ys.get(i);
+		}
+		return new SerializedForm(functionId, targetValue, unknown, varying, fixed, tolerance, maxError, x, y);
+	}
+
+	private static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 2L;
+
+		private final String functionId;
+		private final double targetValue;
+		private final int unknown;
+		private final int varying;
+		private final double fixed;
+		private final double tolerance;
+		private final double maxError;
+		private final double[] xs;
+		private final double[] ys;
+
+		SerializedForm(String functionId, double targetValue, int unknown, int varying, double fixed, double tolerance, double maxError, double[] xs,
+				double[] ys) {
+			this.functionId = functionId;
+			this.targetValue = targetValue;
+			this.unknown = unknown;
+			this.varying = varying;
+			this.fixed = fixed;
+			this.tolerance = tolerance;
+			this.maxError = maxError;
+			this.xs = xs;
+			this.ys = ys;
+		}
+
+		private Object readResolve() {
+			return new InterpolationTable(functionId, targetValue, unknown, varying, fixed, tolerance, maxError, DoubleBuffer.wrap(xs), DoubleBuffer.wrap(ys));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)//
+				.add("function", functionId)//
+				.add("targetValue", targetValue)//
+				.add("unknown", unknown)//
+				.add("varying", varying)//
+				.add("fixed", fixed)//
+				.add("range", lower() + ".." + upper())//
+				.add("size", size())//
+				.add("maxError", maxError)//
+				.toString();
+	}
+}
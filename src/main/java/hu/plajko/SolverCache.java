@@ -0,0 +1,247 @@
+package hu.plajko;
+
+import hu.plajko.cache.ContextCacheStats;
+import hu.plajko.cache.ContextedCacheBuilder;
+import hu.plajko.cache.ContextedCacheLoader;
+import hu.plajko.cache.ContextedLoadingCache;
+import hu.plajko.cache.ContextedRemovalListener;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+// memoizes the solutions of Approximators: the function, the target and the solver are the context, the
+// known params are quantized into the key; a miss is solved from the closest cached solution of its context
+public final class SolverCache {
+
+	// the function, the target and the solver of an Approximator, which solves the misses
+	public static final class Context {
+
+		private final Approximator approximator;
+
+		Context(Approximator approximator) {
+			this.approximator = approximator;
+		}
+
+		@Override
+		public int hashCode() {
+			return (approximator.getFunction().hashCode() * 31 + Longs.hashCode(Double.doubleToLongBits(approximator.getTargetValue()))) * 31
+					+ approximator.getSolver().hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Context))
+				return false;
+			Context other = (Context) obj;
+			return approximator.getFunction().equals(other.approximator.getFunction())
+					&& Double.doubleToLongBits(approximator.getTargetValue()) == Double.doubleToLongBits(other.approximator.getTargetValue())
+					&& approximator.getSolver().equals(other.approximator.getSolver());
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(this).add("function", approximator.getFunction()).add("targetValue", approximator.getTargetValue())
+					.add("solver", approximator.getSolver()).toString();
+		}
+	}
+
+	// the index of the unknown and the quantized known params; the context is in it too, ContextedKey
+	// doesn't compare contexts. Ordered by the later known param first, so in THM the solutions of a
+	// term are next to each other.
+	static final class Key implements Comparable<Key> {
+
+		private final Context context;
+		private final int index;
+		private final long first;
+		private final long second;
+		// the params the solution is for
+		private final double param0;
+		private final double param1;
+		private final double param2;
+
+		Key(Context context, int index, long first, long second, double param0, double param1, double param2) {
+			this.context = context;
+			this.index = index;
+			this.first = first;
+			this.second = second;
+			this.param0 = param0;
+			this.param1 = param1;
+			this.param2 = param2;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			if (index != other.index)
+				return (index < other.index) ? -1 : 1;
+			int c = Longs.compare(second, other.second);
+			return (c != 0) ? c : Longs.compare(first, other.first);
+		}
+
+		// relative to the params, so the scale of a param doesn't matter
+		double distance(Key other) {
+			return distance(param0, other.param0) + distance(param1, other.param1) + distance(param2, other.param2);
+		}
+
+		private static double distance(double a, double b) {
+			return Math.abs(a - b) / Math.max(Math.max(Math.abs(a), Math.abs(b)), 1.0d);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((context.hashCode() * 31 + index) * 31 + Longs.hashCode(first)) * 31 + Longs.hashCode(second);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return index == other.index && first == other.first && second == other.second && context.equals(other.context);
+		}
+	}
+
+	private final double[] quanta;
+	private final ContextedLoadingCache<Key, Double, Context> cache;
+	// the cached solutions of every context, ordered for the nearest neighbour lookups; a context's map is
+	// removed with its last solution, one put into it meanwhile is only lost as a neighbour
+	private final ConcurrentMap<Context, ConcurrentSkipListMap<Key, Double>> solved = new ConcurrentHashMap<Context, ConcurrentSkipListMap<Key, Double>>();
+	private final AtomicLong seededCount = new AtomicLong();
+
+	// a param is rounded to a multiple of its quantum, 0 means it isn't rounded
+	public SolverCache(long maximumSize, double quantum0, double quantum1, double quantum2) {
+		Preconditions.checkArgument(quantum0 >= 0 && quantum1 >= 0 && quantum2 >= 0, "the quanta must not be negative");
+		this.quanta = new double[] { quantum0, quantum1, quantum2 };
+		this.cache = ContextedCacheBuilder.<Key, Double, Context> from(CacheBuilder.newBuilder().maximumSize(maximumSize))//
+				.removalListener(new ContextedRemovalListener<Key, Double, Context>() {
+					@Override
+					public void onRemoval(Context context, Key key, Double value, RemovalCause cause) {
+						// a replaced solution is put again by its load
+						if (cause == RemovalCause.REPLACED || key == null)
+							return;
+						ConcurrentSkipListMap<Key, Double> solutions = solved.get(context);
+						if (solutions != null && solutions.remove(key) != null && solutions.isEmpty())
+							solved.remove(context, solutions);
+					}
+				})//
+				// by function, there can be too many targets to keep the stats of
+				.recordStatsByContext(new Function<Context, Object>() {
+					@Override
+					public Object apply(Context context) {
+						return context.approximator.getFunction();
+					}
+				})//
+				.build(new ContextedCacheLoader<Key, Double, Context>() {
+					@Override
+					public Double load(Context context, Key key) throws Exception {
+						return solve(context, key);
+					}
+				});
+	}
+
+	// the solution for the quantized params, the unknown's value is ignored
+	public double findSolution(Approximator approximator, int index, double param0, double param1, double param2) {
+		Preconditions.checkElementIndex(index, 3);
+		param0 = quantize(param0, 0);
+		param1 = quantize(param1, 1);
+		param2 = quantize(param2, 2);
+		long first = bits((index == 0) ? param1 : param0);
+		long second = bits((index == 2) ? param1 : param2);
+		Context context = new Context(approximator);
+		try {
+			return cache.get(context, new Key(context, index, first, second, param0, param1, param2));
+		} catch (ExecutionException e) {
+			throw new UncheckedExecutionException(e.getCause());
+		}
+	}
+
+	private double quantize(double param, int index) {
+		double quantum = quanta[index];
+		return (quantum == 0) ? param : Math.rint(param / quantum) * quantum;
+	}
+
+	private static long bits(double param) {
+		// -0.0 and 0.0 are the same key; the bits of a negative param are flipped, so the longs are in
+		// the order of the params
+		long bits = Double.doubleToLongBits(param + 0.0d);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	private ConcurrentSkipListMap<Key, Double> solutions(Context context) {
+		ConcurrentSkipListMap<Key, Double> solutions = solved.get(context);
+		if (solutions == null) {
+			ConcurrentSkipListMap<Key, Double> created = new ConcurrentSkipListMap<Key, Double>();
+			solutions = solved.putIfAbsent(context, created);
+			if (solutions == null)
+				solutions = created;
+		}
+		return solutions;
+	}
+
+	private double solve(Context context, Key key) {
+		ConcurrentSkipListMap<Key, Double> solutions = solutions(context);
+		// the closer one of the neighbours in the order is the start, if there's one
+		Entry<Key, Double> nearest = closer(key, solutions.lowerEntry(key), solutions.higherEntry(key));
+		double start = 0.0d;
+		if (nearest != null) {
+			start = nearest.getValue();
+			seededCount.incrementAndGet();
+		}
+		double param0 = (key.index == 0) ? start : key.param0;
+		double param1 = (key.index == 1) ? start : key.param1;
+		double param2 = (key.index == 2) ? start : key.param2;
+		double solution = context.approximator.findSolution(key.index, param0, param1, param2);
+		if (!Double.isNaN(solution))
+			solutions.put(key, solution);
+		return solution;
+	}
+
+	private static Entry<Key, Double> closer(Key key, Entry<Key, Double> lower, Entry<Key, Double> higher) {
+		if (lower != null && (lower.getKey().index != key.index || Double.isNaN(lower.getValue())))
+			lower = null;
+		if (higher != null && (higher.getKey().index != key.index || Double.isNaN(higher.getValue())))
+			higher = null;
+		if (lower == null || higher == null)
+			return (lower == null) ? higher : lower;
+		return (key.distance(lower.getKey()) <= key.distance(higher.getKey())) ? lower : higher;
+	}
+
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	// by the function of the Approximators
+	public Map<Object, ContextCacheStats> statsByContext() {
+		return cache.statsByContext();
+	}
+
+	// the misses that were solved from a cached neighbour
+	public long seededCount() {
+		return seededCount.get();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+}
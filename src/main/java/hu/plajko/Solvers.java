@@ -0,0 +1,439 @@
+package hu.plajko;
+
+import hu.plajko.Approximator.Derivative;
+import hu.plajko.Approximator.Function;
+import hu.plajko.Approximator.Solver;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+// the root finding strategies of Approximator; the iteration cap counts the evaluations of the function.
+// The solvers with the same settings are equal.
+public final class Solvers {
+
+	public static final double DEFAULT_TOLERANCE = 1e-9d;
+	public static final int DEFAULT_MAX_ITERATIONS = 100;
+
+	private static final double EPS = Math.ulp(1.0d);
+
+	private Solvers() {
+	}
+
+	// the original walk: a step growing by 1.1 that turns back with a tenth of it when it overshoots
+	public static Solver stepping() {
+		return STEPPING;
+	}
+
+	// Brent's method, the bracket is searched outwards from the start
+	public static Solver brent() {
+		return brent(DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+	}
+
+	public static Solver brent(double tolerance, int maxIterations) {
+		return new Brent(Double.NaN, Double.NaN, tolerance, maxIterations);
+	}
+
+	// Brent's method in [lower, upper], the function must change sign in it
+	public static Solver brent(double lower, double upper, double tolerance, int maxIterations) {
+		Preconditions.checkArgument(lower < upper, "lower must be less than upper");
+		return new Brent(lower, upper, tolerance, maxIterations);
+	}
+
+	public static Solver secant() {
+		return secant(DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+	}
+
+	public static Solver secant(double tolerance, int maxIterations) {
+		return new Secant(tolerance, maxIterations);
+	}
+
+	// uses the derivative of a Derivative function, a central difference otherwise
+	public static Solver newton() {
+		return newton(DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+	}
+
+	public static Solver newton(double tolerance, int maxIterations) {
+		return new Newton(tolerance, maxIterations);
+	}
+
+	// function - targetValue with x in the place of the unknown
+	static double residual(Function function, double targetValue, double param0, double param1, double param2, int index, double x) {
+		switch (index) {
+		case 0:
+			return function.calculate(x, param1, param2) - targetValue;
+		case 1:
+			return function.calculate(param0, x, param2) - targetValue;
+		default:
+			return function.calculate(param0, param1, x) - targetValue;
+		}
+	}
+
+	private static double derivative(Derivative function, double param0, double param1, double param2, int index, double x) {
+		switch (index) {
+		case 0:
+			return function.derivative(x, param1, param2, index);
+		case 1:
+			return function.derivative(param0, x, param2, index);
+		default:
+			return function.derivative(param0, param1, x, index);
+		}
+	}
+
+	static double start(double param0, double param1, double param2, int index) {
+		switch (index) {
+		case 0:
+			return param0;
+		case 1:
+			return param1;
+		default:
+			return param2;
+		}
+	}
+
+	// the first step away from the start
+	private static double initialStep(double start) {
+		return Math.max(Math.abs(start) * 0.01d, 0.001d);
+	}
+
+	private static boolean finite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private static abstract class Iterative implements Solver {
+
+		final double tolerance;
+		final int maxIterations;
+
+		Iterative(double tolerance, int maxIterations) {
+			Preconditions.checkArgument(tolerance > 0, "tolerance must be positive");
+			Preconditions.checkArgument(maxIterations > 1, "maxIterations must be greater than 1");
+			this.tolerance = tolerance;
+			this.maxIterations = maxIterations;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(getClass(), tolerance, maxIterations);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || obj.getClass() != getClass())
+				return false;
+			Iterative other = (Iterative) obj;
+			return Double.doubleToLongBits(tolerance) == Double.doubleToLongBits(other.tolerance) && maxIterations == other.maxIterations;
+		}
+	}
+
+	private static final Solver STEPPING = new Solver() {
+
+		private static final double ERR = 0.0001d;
+
+		@Override
+		public double solve(Function function, double targetValue, double param0, double param1, double param2, int solutionIndex) {
+			double add = 1.0d;
+			double prevDelta = Double.NaN;
+			boolean first = true;
+			while (true) {
+				if (!first) {
+					switch (solutionIndex) {
+					default:
+					case 0:
+						param0 += add;
+						break;
+					case 1:
+						param1 += add;
+						break;
+					case 2:
+						param2 += add;
+						break;
+					}
+				}
+				double currentValue = function.calculate(param0, param1, param2);
+				double delta = Math.abs(currentValue - targetValue);
+
+				if (!first && prevDelta < delta)
+					add *= -0.1d;
+				else
+					add *= 1.1;
+
+				// compared like Double.equals, so a NaN equals a NaN
+				if (!first && Double.doubleToLongBits(prevDelta) == Double.doubleToLongBits(delta)) {
+					break;
+				}
+
+				prevDelta = delta;
+				first = false;
+			}
+			if (prevDelta > ERR)
+				return Double.NaN;
+			return start(param0, param1, param2, solutionIndex);
+		}
+	};
+
+	private static final class Brent extends Iterative {
+
+		private final double lower;
+		private final double upper;
+
+		Brent(double lower, double upper, double tolerance, int maxIterations) {
+			super(tolerance, maxIterations);
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(super.hashCode(), lower, upper);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!super.equals(obj))
+				return false;
+			Brent other = (Brent) obj;
+			return Double.doubleToLongBits(lower) == Double.doubleToLongBits(other.lower)
+					&& Double.doubleToLongBits(upper) == Double.doubleToLongBits(other.upper);
+		}
+
+		@Override
+		public double solve(Function function, double targetValue, double param0, double param1, double param2, int index) {
+			double a, fa, b, fb;
+			int evaluations;
+			if (Double.isNaN(lower)) {
+				// a doubling step outwards, on the side with the smaller residual (on both while they're
+				// equal or one can't be evaluated), until the function changes sign between two points
+				double start = start(param0, param1, param2, index);
+				double f = residual(function, targetValue, param0, param1, param2, index, start);
+				evaluations = 1;
+				if (f == 0)
+					return start;
+				double right = start, fRight = f, left = start, fLeft = f;
+				boolean toRight = true, toLeft = true;
+				double step = initialStep(start);
+				while (true) {
+					if (toRight) {
+						if (evaluations >= maxIterations)
+							return Double.NaN;
+						double x = start + step;
+						double fx = residual(function, targetValue, param0, param1, param2, index, x);
+						evaluations++;
+						if (fx == 0)
+							return x;
+						if (finite(fx)) {
+							if (finite(fRight) && (fx < 0) != (fRight < 0)) {
+								a = right;
+								fa = fRight;
+								b = x;
+								fb = fx;
+								break;
+							}
+							right = x;
+							fRight = fx;
+						}
+					}
+					if (toLeft) {
+						if (evaluations >= maxIterations)
+							return Double.NaN;
+						double x = start - step;
+						double fx = residual(function, targetValue, param0, param1, param2, index, x);
+						evaluations++;
+						if (fx == 0)
+							return x;
+						if (finite(fx)) {
+							if (finite(fLeft) && (fx < 0) != (fLeft < 0)) {
+								a = left;
+								fa = fLeft;
+								b = x;
+								fb = fx;
+								break;
+							}
+							left = x;
+							fLeft = fx;
+						}
+					}
+					if (finite(fRight) && finite(fLeft)) {
+						toRight = Math.abs(fRight) <= Math.abs(fLeft);
+						toLeft = Math.abs(fLeft) <= Math.abs(fRight);
+					}
+					step *= 2.0d;
+				}
+			} else {
+				a = lower;
+				b = upper;
+				fa = residual(function, targetValue, param0, param1, param2, index, a);
+				fb = residual(function, targetValue, param0, param1, param2, index, b);
+				evaluations = 2;
+				if (fa == 0)
+					return a;
+				if (fb == 0)
+					return b;
+				if (!finite(fa) || !finite(fb) || (fa < 0) == (fb < 0))
+					return Double.NaN;
+			}
+
+			// b is the best guess, c is on the other side of the root, a is the previous b
+			double c = b, fc = fb;
+			double d = b - a, e = d;
+			while (true) {
+				if ((fb > 0) == (fc > 0)) {
+					c = a;
+					fc = fa;
+					d = e = b - a;
+				}
+				if (Math.abs(fc) < Math.abs(fb)) {
+					a = b;
+					b = c;
+					c = a;
+					fa = fb;
+					fb = fc;
+					fc = fa;
+				}
+				double tol = 2.0d * EPS * Math.abs(b) + 0.5d * tolerance;
+				double m = 0.5d * (c - b);
+				if (Math.abs(m) <= tol || fb == 0)
+					return b;
+				if (evaluations >= maxIterations)
+					return Double.NaN;
+				if (Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb)) {
+					// inverse quadratic interpolation, or secant if only two points are known
+					double p, q, s = fb / fa;
+					if (a == c) {
+						p = 2.0d * m * s;
+						q = 1.0d - s;
+					} else {
+						double r = fb / fc;
+						q = fa / fc;
+						p = s * (2.0d * m * q * (q - r) - (b - a) * (r - 1.0d));
+						q = (q - 1.0d) * (r - 1.0d) * (s - 1.0d);
+					}
+					if (p > 0)
+						q = -q;
+					else
+						p = -p;
+					if (2.0d * p < Math.min(3.0d * m * q - Math.abs(tol * q), Math.abs(e * q))) {
+						e = d;
+						d = p / q;
+					} else {
+						d = m;
+						e = d;
+					}
+				} else {
+					// bisection
+					d = m;
+					e = d;
+				}
+				a = b;
+				fa = fb;
+				b += (Math.abs(d) > tol) ? d : Math.copySign(tol, m);
+				fb = residual(function, targetValue, param0, param1, param2, index, b);
+				evaluations++;
+				if (Double.isNaN(fb))
+					return Double.NaN;
+			}
+		}
+	}
+
+	private static final class Secant extends Iterative {
+
+		Secant(double tolerance, int maxIterations) {
+			super(tolerance, maxIterations);
+		}
+
+		@Override
+		public double solve(Function function, double targetValue, double param0, double param1, double param2, int index) {
+			double x0 = start(param0, param1, param2, index);
+			double step = initialStep(x0);
+			double f0 = residual(function, targetValue, param0, param1, param2, index, x0);
+			int evaluations = 1;
+			// a start that can't be evaluated is left
+			while (!finite(f0)) {
+				if (evaluations >= maxIterations)
+					return Double.NaN;
+				x0 += step;
+				step *= 2.0d;
+				f0 = residual(function, targetValue, param0, param1, param2, index, x0);
+				evaluations++;
+			}
+			if (f0 == 0)
+				return x0;
+			double x1 = x0 + step;
+			double f1 = residual(function, targetValue, param0, param1, param2, index, x1);
+			evaluations++;
+			while (finite(f1)) {
+				if (f1 == 0)
+					return x1;
+				if (f1 == f0 || evaluations >= maxIterations)
+					return Double.NaN;
+				double dx = f1 * (x1 - x0) / (f1 - f0);
+				x0 = x1;
+				f0 = f1;
+				x1 -= dx;
+				f1 = residual(function, targetValue, param0, param1, param2, index, x1);
+				evaluations++;
+				if (Math.abs(dx) <= tolerance)
+					return finite(f1) ? x1 : Double.NaN;
+			}
+			return Double.NaN;
+		}
+	}
+
+	private static final class Newton extends Iterative {
+
+		Newton(double tolerance, int maxIterations) {
+			super(tolerance, maxIterations);
+		}
+
+		@Override
+		public double solve(Function function, double targetValue, double param0, double param1, double param2, int index) {
+			Derivative derivative = (function instanceof Derivative) ? (Derivative) function : null;
+			double x = start(param0, param1, param2, index);
+			double step = initialStep(x);
+			double fx = residual(function, targetValue, param0, param1, param2, index, x);
+			int evaluations = 1;
+			while (!finite(fx)) {
+				if (evaluations >= maxIterations)
+					return Double.NaN;
+				x += step;
+				step *= 2.0d;
+				fx = residual(function, targetValue, param0, param1, param2, index, x);
+				evaluations++;
+			}
+			while (true) {
+				if (fx == 0)
+					return x;
+				if (evaluations >= maxIterations)
+					return Double.NaN;
+				double slope;
+				if (derivative != null) {
+					slope = derivative(derivative, param0, param1, param2, index, x);
+				} else {
+					double h = 1e-6d * Math.max(Math.abs(x), 1.0d);
+					slope = (residual(function, targetValue, param0, param1, param2, index, x + h) //
+					- residual(function, targetValue, param0, param1, param2, index, x - h)) / (2.0d * h);
+					evaluations += 2;
+				}
+				if (!finite(slope))
+					return Double.NaN;
+				if (slope == 0) {
+					// a flat point, e.g. the start, is left
+					x += step;
+					step *= 2.0d;
+					fx = residual(function, targetValue, param0, param1, param2, index, x);
+					evaluations++;
+					continue;
+				}
+				double dx = fx / slope;
+				x -= dx;
+				fx = residual(function, targetValue, param0, param1, param2, index, x);
+				evaluations++;
+				if (!finite(fx))
+					return Double.NaN;
+				if (Math.abs(dx) <= tolerance)
+					return x;
+			}
+		}
+	}
+}
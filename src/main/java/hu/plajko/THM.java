@@ -5,11 +5,16 @@ import hu.plajko.Approximator.Function;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.primitives.Doubles;
+
 public class THM {
 
 	private static final Logger log = LoggerFactory.getLogger(ApproximatorTest.class);
@@ -27,6 +32,19 @@ public class THM {
 		aruhitel();
 	}
 
+	private static double[] range(double from, double to, double step) {
+		List<Double> values = new ArrayList<Double>();
+		for (double value = from; value <= to; value += step)
+			values.add(value);
+		return Doubles.toArray(values);
+	}
+
+	private static double[] repeat(double value, int count) {
+		double[] values = new double[count];
+		Arrays.fill(values, value);
+		return values;
+	}
+
 	private static void lakashitel() {
 		double amount = 10000000.0d;
 		Approximator THMCalculator = new Approximator(THMFunc, amount);
@@ -35,16 +53,16 @@ public class THM {
 		double periods = 240.0d;
 
 		// THM számolás
-		for (double Ak = 92000.0d; Ak <= 114000d; Ak += 2000.0d) {
-			double calculatedTHM = THMCalculator.findSolution(Ak, null, periods);
-			log.info("Ak: {}\tTHM: {}", nf.format(Ak), nf.format(calculatedTHM));
-		}
+		double[] Ak = range(92000.0d, 114000d, 2000.0d);
+		double[] calculatedTHM = THMCalculator.findSolutions(1, Ak, null, repeat(periods, Ak.length));
+		for (int i = 0; i < Ak.length; i++)
+			log.info("Ak: {}\tTHM: {}", nf.format(Ak[i]), nf.format(calculatedTHM[i]));
 
 		// Törlesztőrészlet számolás
-		for (double THM = 10.8d; THM <= 20.0d; THM += 0.2d) {
-			double calculatedAk = THMCalculator.findSolution(null, THM, periods);
-			log.info("Ak: {}\tTHM: {}", nf.format(calculatedAk), nf.format(THM));
-		}
+		double[] THM = range(10.8d, 20.0d, 0.2d);
+		double[] calculatedAk = THMCalculator.findSolutions(0, null, THM, repeat(periods, THM.length));
+		for (int i = 0; i < THM.length; i++)
+			log.info("Ak: {}\tTHM: {}", nf.format(calculatedAk[i]), nf.format(THM[i]));
 	}
 
 	private static void aruhitel() {
@@ -55,16 +73,16 @@ public class THM {
 		double periods = 12.0d;
 
 		// THM számolás
-		for (double Ak = 79000.0d; Ak <= 90000d; Ak += 500.0d) {
-			double calculatedTHM = THMCalculator.findSolution(Ak, null, periods);
-			log.info("Ak: {}\tTHM: {}", nf.format(Ak), nf.format(calculatedTHM));
-		}
+		double[] Ak = range(79000.0d, 90000d, 500.0d);
+		double[] calculatedTHM = THMCalculator.findSolutions(1, Ak, null, repeat(periods, Ak.length));
+		for (int i = 0; i < Ak.length; i++)
+			log.info("Ak: {}\tTHM: {}", nf.format(Ak[i]), nf.format(calculatedTHM[i]));
 
 		// Törlesztőrészlet számolás
-		for (double THM = 40.0d; THM <= 45.0d; THM += 0.05d) {
-			double calculatedAk = THMCalculator.findSolution(null, THM, periods);
-			log.info("Ak: {}\tTHM: {}", nf.format(calculatedAk), nf.format(THM));
-		}
+		double[] THM = range(40.0d, 45.0d, 0.05d);
+		double[] calculatedAk = THMCalculator.findSolutions(0, null, THM, repeat(periods, THM.length));
+		for (int i = 0; i < THM.length; i++)
+			log.info("Ak: {}\tTHM: {}", nf.format(calculatedAk[i]), nf.format(THM[i]));
 	}
 
 }
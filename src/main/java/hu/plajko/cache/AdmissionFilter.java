@@ -0,0 +1,107 @@
+package hu.plajko.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+// TinyLFU like admission: a loaded value is only cached if its key was requested more often
+// than the one the cache evicted last, so keys seen once (e.g. a scan) don't push out the
+// popular ones. Guava doesn't tell its next victim, the last one stands in for it.
+class AdmissionFilter<K, V, C> {
+
+	private final long maximumSize;
+	private final FrequencySketch sketch;
+	// loads the rejected values, they aren't put into the cache
+	private final CacheLoader<ContextedKey<K, C>, V> loader;
+
+	// cleared by an explicit removal, the cache has room again
+	private volatile K lastVictim = null;
+
+	AdmissionFilter(long maximumSize, CacheLoader<ContextedKey<K, C>, V> loader) {
+		this.maximumSize = maximumSize;
+		this.sketch = new FrequencySketch(maximumSize);
+		this.loader = loader;
+	}
+
+	void requested(K key) {
+		sketch.increment(key);
+	}
+
+	// everything is admitted while the cache isn't full, size is its current one
+	boolean admits(K key, long size) {
+		K victim = lastVictim;
+		return victim == null || size < maximumSize || sketch.frequency(key) > sketch.frequency(victim);
+	}
+
+	// the exceptions are wrapped like the ones of LoadingCache.get
+	V loadWithoutCaching(ContextedKey<K, C> key) throws ExecutionException {
+		V value;
+		try {
+			value = loader.load(key);
+		} catch (RuntimeException e) {
+			throw new UncheckedExecutionException(e);
+		} catch (Exception e) {
+			throw new ExecutionException(e);
+		} catch (Error e) {
+			throw new ExecutionError(e);
+		}
+		if (value == null)
+			throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+		return value;
+	}
+
+	// the same for the refused misses of a getAll, with one loadAll if the loader has it. a key
+	// that isn't found, or has a cached miss, is left out of the result
+	Map<ContextedKey<K, C>, V> loadAllWithoutCaching(List<ContextedKey<K, C>> keys) throws ExecutionException {
+		try {
+			Map<ContextedKey<K, C>, V> found = new HashMap<ContextedKey<K, C>, V>();
+			Map<ContextedKey<K, C>, V> values;
+			try {
+				values = loader.loadAll(keys);
+			} catch (UnsupportedOperationException e) {
+				for (ContextedKey<K, C> key : keys) {
+					try {
+						V value = loader.load(key);
+						if (value != null)
+							found.put(key, value);
+					} catch (CachedMissException miss) {
+						// left out
+					}
+				}
+				return found;
+			}
+			for (ContextedKey<K, C> key : keys) {
+				V value = values.get(key);
+				if (value != null)
+					found.put(key, value);
+			}
+			return found;
+		} catch (RuntimeException e) {
+			throw new UncheckedExecutionException(e);
+		} catch (Exception e) {
+			throw new ExecutionException(e);
+		} catch (Error e) {
+			throw new ExecutionError(e);
+		}
+	}
+
+	ContextedRemovalListener<K, V, C> watching(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				if (cause == RemovalCause.SIZE)
+					lastVictim = key;
+				else if (cause == RemovalCause.EXPLICIT)
+					lastVictim = null;
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+}
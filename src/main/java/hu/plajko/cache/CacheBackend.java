@@ -0,0 +1,12 @@
+package hu.plajko.cache;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+// the storage under a ContextedLoadingCache, it's called with the keys of every context.
+// the backend has to pass its removals to the listener (null if there's none)
+public interface CacheBackend {
+
+	public <K, V, C> LoadingCache<ContextedKey<K, C>, V> build(CacheLoader<ContextedKey<K, C>, V> loader, ContextedRemovalListener<K, V, C> listener);
+
+}
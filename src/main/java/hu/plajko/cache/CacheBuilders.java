@@ -0,0 +1,53 @@
+package hu.plajko.cache;
+
+import java.lang.reflect.Field;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+
+// the settings of a CacheBuilder that this Guava doesn't expose, read from its fields; a setting
+// that can't be read is UNSET
+final class CacheBuilders {
+
+	static final long UNSET = -1;
+
+	private CacheBuilders() {
+	}
+
+	static long maximumSize(CacheBuilder<?, ?> builder) {
+		return longField(builder, "maximumSize");
+	}
+
+	static long expireAfterWriteNanos(CacheBuilder<?, ?> builder) {
+		return longField(builder, "expireAfterWriteNanos");
+	}
+
+	static long expireAfterAccessNanos(CacheBuilder<?, ?> builder) {
+		return longField(builder, "expireAfterAccessNanos");
+	}
+
+	static boolean hasRemovalListener(CacheBuilder<?, ?> builder) {
+		return field(builder, "removalListener") != null;
+	}
+
+	// the removal listener of a ContextedCacheBuilder is set on the CacheBuilder, which takes only one
+	static void checkNoRemovalListener(CacheBuilder<?, ?> builder) {
+		Preconditions.checkArgument(!hasRemovalListener(builder),
+				"the CacheBuilder already has a removal listener, set it with ContextedCacheBuilder.removalListener instead");
+	}
+
+	private static long longField(CacheBuilder<?, ?> builder, String name) {
+		Object value = field(builder, name);
+		return (value instanceof Number) ? ((Number) value).longValue() : UNSET;
+	}
+
+	private static Object field(CacheBuilder<?, ?> builder, String name) {
+		try {
+			Field field = CacheBuilder.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package hu.plajko.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// writes the resident entries to a file and puts them back into a new cache. the write time
+// of every key is kept, so a restored entry only lives for the rest of its time to live.
+//
+// file: magic, snapshot time (ms), then for every entry the key, context and value bytes
+// (length first, -1 for a null context) and its remaining time to live (ms, -1 if none),
+// ended by a -1 key length
+class CacheSnapshots<K, V, C> {
+
+	private static final int MAGIC = 0x43534e31; // CSN1
+
+	private final Serializer<K> keySerializer;
+	private final Serializer<C> contextSerializer;
+	private final Serializer<V> valueSerializer;
+	// the expireAfterWrite of the cache in ms, 0 if the entries don't expire
+	private long timeToLive = 0;
+
+	// System.currentTimeMillis() of the last load or put of every resident key
+	private final ConcurrentMap<K, Long> writeTimes = new ConcurrentHashMap<K, Long>();
+
+	private ScheduledExecutorService expirer = null;
+
+	CacheSnapshots(Serializer<K> keySerializer, Serializer<C> contextSerializer, Serializer<V> valueSerializer) {
+		this.keySerializer = keySerializer;
+		this.contextSerializer = contextSerializer;
+		this.valueSerializer = valueSerializer;
+	}
+
+	// set by the builder, UNSET if it's not known
+	void expireAfterWrite(long expireAfterWriteNanos) {
+		this.timeToLive = TimeUnit.NANOSECONDS.toMillis(Math.max(0, expireAfterWriteNanos));
+	}
+
+	void written(K key) {
+		writeTimes.put(key, System.currentTimeMillis());
+	}
+
+	int write(LoadingCache<ContextedKey<K, C>, V> cache, File file) throws IOException {
+		// written next to the old one and moved over it, a crash leaves the old snapshot
+		File temp = new File(file.getPath() + ".tmp");
+		int count = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			long now = System.currentTimeMillis();
+			out.writeInt(MAGIC);
+			out.writeLong(now);
+			for (Entry<ContextedKey<K, C>, V> entry : cache.asMap().entrySet()) {
+				long remaining = -1;
+				if (timeToLive > 0) {
+					Long written = writeTimes.get(entry.getKey().getKey());
+					remaining = (written == null) ? timeToLive : written + timeToLive - now;
+					if (remaining <= 0)
+						continue;
+				}
+				writeBytes(out, keySerializer.serialize(entry.getKey().getKey()));
+				C context = entry.getKey().getContext();
+				writeBytes(out, (context == null) ? null : contextSerializer.serialize(context));
+				writeBytes(out, valueSerializer.serialize(entry.getValue()));
+				out.writeLong(remaining);
+				count++;
+			}
+			out.writeInt(-1);
+		} finally {
+			out.close();
+		}
+		Files.move(temp, file);
+		return count;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	// the value isn't kept, it would stay reachable until its deadline even if the cache dropped it
+	private static class Restored<K, C> {
+		private final ContextedKey<K, C> key;
+		private final long writeTime;
+
+		Restored(ContextedKey<K, C> key, long writeTime) {
+			this.key = key;
+			this.writeTime = writeTime;
+		}
+	}
+
+	// the entries expired since the snapshot are skipped, the others are removed when their time is up
+	int restore(LoadingCache<ContextedKey<K, C>, V> cache, File file) throws IOException {
+		List<Restored<K, C>> restored = new ArrayList<Restored<K, C>>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a cache snapshot: " + file);
+			long now = System.currentTimeMillis();
+			long downtime = Math.max(0, now - in.readLong());
+			while (true) {
+				byte[] keyBytes = readBytes(in);
+				if (keyBytes == null)
+					break;
+				byte[] contextBytes = readBytes(in);
+				byte[] valueBytes = readBytes(in);
+				if (valueBytes == null)
+					throw new EOFException("truncated cache snapshot: " + file);
+				long remaining = in.readLong();
+				if (remaining >= 0 && remaining - downtime <= 0)
+					continue;
+				K key = keySerializer.deserialize(keyBytes);
+				C context = (contextBytes == null) ? null : contextSerializer.deserialize(contextBytes);
+				ContextedKey<K, C> contextedKey = new ContextedKey<K, C>(key, context);
+				V value = valueSerializer.deserialize(valueBytes);
+				long writeTime = (remaining < 0 || timeToLive <= 0) ? now : now - timeToLive + remaining - downtime;
+				// a value loaded since the cache was created is newer
+				if (cache.asMap().putIfAbsent(contextedKey, value) == null) {
+					writeTimes.put(key, writeTime);
+					restored.add(new Restored<K, C>(contextedKey, writeTime));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (timeToLive > 0 && !restored.isEmpty())
+			expire(cache, restored);
+		return restored.size();
+	}
+
+	// the cache's own expiration starts again at the put, so the restored entries are removed
+	// by one task walking them in the order of their deadlines
+	private void expire(final LoadingCache<ContextedKey<K, C>, V> cache, final List<Restored<K, C>> restored) {
+		Collections.sort(restored, new Comparator<Restored<K, C>>() {
+			@Override
+			public int compare(Restored<K, C> o1, Restored<K, C> o2) {
+				return (o1.writeTime < o2.writeTime) ? -1 : (o1.writeTime == o2.writeTime ? 0 : 1);
+			}
+		});
+		final ScheduledExecutorService executor = expirer();
+		executor.execute(new Runnable() {
+			private int next = 0;
+
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				while (next < restored.size() && restored.get(next).writeTime + timeToLive <= now) {
+					Restored<K, C> entry = restored.get(next++);
+					Long written = writeTimes.get(entry.key.getKey());
+					// loaded or put again since the restore, or already removed
+					if (written != null && written == entry.writeTime)
+						cache.invalidate(entry.key);
+				}
+				if (next < restored.size())
+					executor.schedule(this, restored.get(next).writeTime + timeToLive - now, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	private synchronized ScheduledExecutorService expirer() {
+		if (expirer == null)
+			expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "cache-snapshot-expirer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return expirer;
+	}
+
+	// the restored entries left are removed by the cache's own expiration
+	synchronized void close() {
+		if (expirer != null)
+			expirer.shutdownNow();
+		expirer = null;
+	}
+
+	CacheLoader<ContextedKey<K, C>, V> recording(CacheLoader<ContextedKey<K, C>, V> loader) {
+		return new ForwardingCacheLoader<ContextedKey<K, C>, V>(loader) {
+			@Override
+			public V load(ContextedKey<K, C> key) throws Exception {
+				V value = super.load(key);
+				written(key.getKey());
+				return value;
+			}
+
+			@Override
+			public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+				Map<ContextedKey<K, C>, V> values = super.loadAll(keys);
+				for (ContextedKey<K, C> key : values.keySet())
+					written(key.getKey());
+				return values;
+			}
+
+			@Override
+			public ListenableFuture<V> reload(final ContextedKey<K, C> key, V oldValue) throws Exception {
+				ListenableFuture<V> value = super.reload(key, oldValue);
+				Futures.addCallback(value, new FutureCallback<V>() {
+					@Override
+					public void onSuccess(V result) {
+						written(key.getKey());
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+					}
+				});
+				return value;
+			}
+		};
+	}
+
+	ContextedRemovalListener<K, V, C> recording(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				// the write time of a replaced value is set by its load or put
+				if (cause != RemovalCause.REPLACED)
+					writeTimes.remove(key);
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+}
@@ -0,0 +1,31 @@
+package hu.plajko.cache;
+
+// thrown by the loader instead of going to the backend while a key is known to be missing or
+// failing, get(context, key) throws it as the cause of an ExecutionException
+public class CachedMissException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAt;
+
+	// the key wasn't found, the loader returned null
+	CachedMissException(Object key, long retryAt) {
+		super("no value for " + key);
+		this.retryAt = retryAt;
+	}
+
+	// the last load of the key failed with cause
+	CachedMissException(Object key, long retryAt, Throwable cause) {
+		super("loading " + key + " failed", cause);
+		this.retryAt = retryAt;
+	}
+
+	public boolean isAbsent() {
+		return getCause() == null;
+	}
+
+	// System.currentTimeMillis() when the backend is asked again
+	public long getRetryAt() {
+		return retryAt;
+	}
+}
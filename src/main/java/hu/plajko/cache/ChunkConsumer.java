@@ -0,0 +1,10 @@
+package hu.plajko.cache;
+
+import java.util.Map;
+
+// gets the values of a streaming getAll a chunk at a time, never from two threads at once
+public interface ChunkConsumer<K, V> {
+
+	public void accept(Map<K, V> chunk) throws Exception;
+
+}
@@ -0,0 +1,86 @@
+package hu.plajko.cache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+// loads the misses of a big getAll with a getAll per chunk, at most parallelism of them at a
+// time: the calling thread and parallelism - 1 workers on the executor take the next chunk
+// until none is left. the first failure stops the others from taking new chunks. The caller
+// only waits for the chunks taken by the workers, a worker still queued on the executor (e.g.
+// behind the callers of the same executor) finds none left when it runs.
+class ChunkedLoader<K, V> {
+
+	private final int chunkSize;
+	private final int parallelism;
+	private final Executor executor;
+
+	ChunkedLoader(int chunkSize, int parallelism, Executor executor) {
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+		this.executor = executor;
+	}
+
+	void load(final LoadingCache<K, V> cache, List<K> keys, final ChunkConsumer<K, V> consumer) throws Exception {
+		final List<List<K>> chunks = Lists.partition(keys, chunkSize);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		// the chunks loaded or failed, notified on when it changes
+		final AtomicInteger finished = new AtomicInteger();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while (failure.get() == null && (i = next.getAndIncrement()) < chunks.size()) {
+					try {
+						Map<K, V> values = cache.getAll(chunks.get(i));
+						synchronized (consumer) {
+							if (failure.get() == null)
+								consumer.accept(values);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						synchronized (finished) {
+							finished.incrementAndGet();
+							finished.notifyAll();
+						}
+					}
+				}
+			}
+		};
+
+		int workers = Math.min(parallelism, chunks.size()) - 1;
+		for (int i = 0; i < workers; i++) {
+			try {
+				executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				// fewer workers, the chunks are taken by the others
+				break;
+			}
+		}
+		worker.run();
+		// no chunk is taken after this without a failure, the ones after a failure aren't consumed
+		try {
+			synchronized (finished) {
+				while (finished.get() < Math.min(next.get(), chunks.size()))
+					finished.wait();
+			}
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, e);
+			Thread.currentThread().interrupt();
+		}
+
+		Throwable t = failure.get();
+		if (t instanceof Exception)
+			throw (Exception) t;
+		if (t instanceof Error)
+			throw (Error) t;
+	}
+}
@@ -0,0 +1,40 @@
+package hu.plajko.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+// a cache on a ConcurrentHashMap: a hit is a map lookup without locks or writes to shared
+// state, so it scales with the readers. the size is kept by CLOCK (second chance) eviction
+// and is a bit less strict than Guava's. for read-mostly caches.
+public class ConcurrentMapCacheBackend implements CacheBackend {
+
+	private long maximumSize = -1;
+	private long expireAfterWriteNanos = -1;
+
+	public ConcurrentMapCacheBackend maximumSize(long maximumSize) {
+		Preconditions.checkState(this.maximumSize == -1, "maximum size was already set");
+		Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+		this.maximumSize = maximumSize;
+		return this;
+	}
+
+	public ConcurrentMapCacheBackend expireAfterWrite(long duration, TimeUnit unit) {
+		Preconditions.checkState(this.expireAfterWriteNanos == -1, "expireAfterWrite was already set");
+		Preconditions.checkArgument(duration >= 0, "duration must not be negative");
+		this.expireAfterWriteNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	// -1 if not set
+	long expireAfterWriteNanos() {
+		return expireAfterWriteNanos;
+	}
+
+	@Override
+	public <K, V, C> LoadingCache<ContextedKey<K, C>, V> build(CacheLoader<ContextedKey<K, C>, V> loader, ContextedRemovalListener<K, V, C> listener) {
+		return new ConcurrentMapLoadingCache<K, V, C>(loader, listener, maximumSize, expireAfterWriteNanos);
+	}
+}
@@ -0,0 +1,508 @@
+package hu.plajko.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+// see ConcurrentMapCacheBackend. the map holds a Node for a value or a SettableFuture for a
+// load in progress, the threads asking for the same key wait for that one load
+class ConcurrentMapLoadingCache<K, V, C> extends AbstractLoadingCache<ContextedKey<K, C>, V> {
+
+	private static final Logger log = LoggerFactory.getLogger(ConcurrentMapLoadingCache.class);
+
+	private static final class Node<K, V, C> {
+		// the key the value was put with, the map keeps the first one of equal keys
+		private final ContextedKey<K, C> key;
+		private final V value;
+		private final long writeTime;
+		// set by the reads, cleared by the clock hand
+		private volatile boolean accessed = false;
+
+		Node(ContextedKey<K, C> key, V value) {
+			this.key = key;
+			this.value = value;
+			this.writeTime = System.nanoTime();
+		}
+	}
+
+	private final ConcurrentMap<ContextedKey<K, C>, Object> map = new ConcurrentHashMap<ContextedKey<K, C>, Object>();
+	private final CacheLoader<ContextedKey<K, C>, V> loader;
+	private final ContextedRemovalListener<K, V, C> listener;
+	// -1 if not limited
+	private final long maximumSize;
+	private final long expireAfterWriteNanos;
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	// guarded by evictionLock
+	private Iterator<Entry<ContextedKey<K, C>, Object>> hand = null;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder loadSuccessCount = new LongAdder();
+	private final LongAdder loadExceptionCount = new LongAdder();
+	private final LongAdder totalLoadTime = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+
+	ConcurrentMapLoadingCache(CacheLoader<ContextedKey<K, C>, V> loader, ContextedRemovalListener<K, V, C> listener, long maximumSize,
+			long expireAfterWriteNanos) {
+		this.loader = loader;
+		this.listener = listener;
+		this.maximumSize = maximumSize;
+		this.expireAfterWriteNanos = expireAfterWriteNanos;
+	}
+
+	private boolean expired(Node<K, V, C> node) {
+		return expireAfterWriteNanos >= 0 && System.nanoTime() - node.writeTime >= expireAfterWriteNanos;
+	}
+
+	private void removed(Node<K, V, C> node, RemovalCause cause) {
+		if (cause != RemovalCause.EXPLICIT && cause != RemovalCause.REPLACED)
+			evictionCount.increment();
+		if (listener == null)
+			return;
+		try {
+			listener.onRemoval(node.key.getContext(), node.key.getKey(), node.value, cause);
+		} catch (RuntimeException e) {
+			log.warn("exception thrown by removal listener", e);
+		}
+	}
+
+	// the live value, an expired one is removed
+	@SuppressWarnings("unchecked")
+	private Node<K, V, C> node(ContextedKey<K, C> key, Object o) {
+		if (!(o instanceof Node))
+			return null;
+		Node<K, V, C> node = (Node<K, V, C>) o;
+		if (!expired(node))
+			return node;
+		if (map.remove(key, node))
+			removed(node, RemovalCause.EXPIRED);
+		return null;
+	}
+
+	@Override
+	public V getIfPresent(ContextedKey<K, C> key) {
+		Node<K, V, C> node = node(key, map.get(key));
+		if (node == null) {
+			missCount.increment();
+			return null;
+		}
+		if (!node.accessed)
+			node.accessed = true;
+		hitCount.increment();
+		return node.value;
+	}
+
+	// Cache.get(K) is deprecated in this Guava, LoadingCache's isn't
+	@Override
+	@SuppressWarnings({ "unchecked", "deprecation" })
+	public V get(ContextedKey<K, C> key) throws ExecutionException {
+		Object o = map.get(key);
+		Node<K, V, C> node = node(key, o);
+		if (node != null) {
+			if (!node.accessed)
+				node.accessed = true;
+			hitCount.increment();
+			return node.value;
+		}
+		missCount.increment();
+		if (o instanceof SettableFuture)
+			return await((SettableFuture<V>) o);
+		return load(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V load(ContextedKey<K, C> key) throws ExecutionException {
+		SettableFuture<V> loading = SettableFuture.create();
+		while (true) {
+			Object existing = map.putIfAbsent(key, loading);
+			if (existing == null)
+				break;
+			if (existing instanceof SettableFuture)
+				return await((SettableFuture<V>) existing);
+			// loaded by another thread meanwhile
+			Node<K, V, C> node = node(key, existing);
+			if (node != null)
+				return node.value;
+		}
+		long start = System.nanoTime();
+		try {
+			V value = loader.load(key);
+			if (value == null)
+				throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+			loadSuccessCount.increment();
+			totalLoadTime.add(System.nanoTime() - start);
+			// invalidated while loading: the value is returned, but not kept
+			if (map.replace(key, loading, new Node<K, V, C>(key, value)))
+				evictIfNeeded();
+			loading.set(value);
+			return value;
+		} catch (Throwable t) {
+			loadExceptionCount.increment();
+			totalLoadTime.add(System.nanoTime() - start);
+			map.remove(key, loading);
+			loading.setException(t);
+			throw wrap(t);
+		}
+	}
+
+	private V await(SettableFuture<V> loading) throws ExecutionException {
+		try {
+			return Uninterruptibles.getUninterruptibly(loading);
+		} catch (ExecutionException e) {
+			throw wrap(e.getCause());
+		}
+	}
+
+	// like the exceptions of a Guava cache
+	private static ExecutionException wrap(Throwable t) throws ExecutionException {
+		if (t instanceof CacheLoader.InvalidCacheLoadException)
+			throw (CacheLoader.InvalidCacheLoadException) t;
+		if (t instanceof Error)
+			throw new ExecutionError((Error) t);
+		if (t instanceof RuntimeException)
+			throw new UncheckedExecutionException(t);
+		return new ExecutionException(t);
+	}
+
+	@Override
+	public ImmutableMap<ContextedKey<K, C>, V> getAll(Iterable<? extends ContextedKey<K, C>> keys) throws ExecutionException {
+		Map<ContextedKey<K, C>, V> result = new LinkedHashMap<ContextedKey<K, C>, V>();
+		Set<ContextedKey<K, C>> missing = new LinkedHashSet<ContextedKey<K, C>>();
+		for (ContextedKey<K, C> key : keys) {
+			if (result.containsKey(key) || missing.contains(key))
+				continue;
+			Node<K, V, C> node = node(key, map.get(key));
+			if (node != null) {
+				node.accessed = true;
+				hitCount.increment();
+				result.put(key, node.value);
+			} else
+				missing.add(key);
+		}
+		if (!missing.isEmpty()) {
+			missCount.add(missing.size());
+			Map<ContextedKey<K, C>, V> loaded = loadAll(missing);
+			for (ContextedKey<K, C> key : missing) {
+				V value = loaded.get(key);
+				if (value == null)
+					throw new CacheLoader.InvalidCacheLoadException("loadAll failed to return a value for " + key);
+				result.put(key, value);
+			}
+		}
+		// in the order of the keys
+		ImmutableMap.Builder<ContextedKey<K, C>, V> ordered = ImmutableMap.builder();
+		for (ContextedKey<K, C> key : keys) {
+			V value = result.remove(key);
+			if (value != null)
+				ordered.put(key, value);
+		}
+		return ordered.build();
+	}
+
+	private Map<ContextedKey<K, C>, V> loadAll(Set<ContextedKey<K, C>> keys) throws ExecutionException {
+		long start = System.nanoTime();
+		Map<ContextedKey<K, C>, V> loaded;
+		try {
+			loaded = loader.loadAll(keys);
+		} catch (UnsupportedOperationException e) {
+			// no bulk loader, one by one
+			loaded = new LinkedHashMap<ContextedKey<K, C>, V>();
+			for (ContextedKey<K, C> key : keys)
+				loaded.put(key, load(key));
+			return loaded;
+		} catch (Throwable t) {
+			loadExceptionCount.increment();
+			totalLoadTime.add(System.nanoTime() - start);
+			throw wrap(t);
+		}
+		loadSuccessCount.increment();
+		totalLoadTime.add(System.nanoTime() - start);
+		for (Entry<ContextedKey<K, C>, V> entry : loaded.entrySet())
+			if (entry.getKey() != null && entry.getValue() != null)
+				put(entry.getKey(), entry.getValue());
+		return loaded;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void put(ContextedKey<K, C> key, V value) {
+		Object old = map.put(key, new Node<K, V, C>(key, value));
+		if (old instanceof Node)
+			removed((Node<K, V, C>) old, RemovalCause.REPLACED);
+		evictIfNeeded();
+	}
+
+	// the old value is served until the new one is loaded
+	@Override
+	public void refresh(final ContextedKey<K, C> key) {
+		final Node<K, V, C> old = node(key, map.get(key));
+		if (old == null) {
+			try {
+				load(key);
+			} catch (Exception e) {
+				log.warn("exception thrown during refresh", e);
+			}
+			return;
+		}
+		final long start = System.nanoTime();
+		final ListenableFuture<V> reloading;
+		try {
+			reloading = loader.reload(key, old.value);
+		} catch (Exception e) {
+			loadExceptionCount.increment();
+			log.warn("exception thrown during refresh", e);
+			return;
+		}
+		reloading.addListener(new Runnable() {
+			@Override
+			public void run() {
+				totalLoadTime.add(System.nanoTime() - start);
+				try {
+					V value = Uninterruptibles.getUninterruptibly(reloading);
+					loadSuccessCount.increment();
+					if (value != null && map.replace(key, old, new Node<K, V, C>(key, value)))
+						removed(old, RemovalCause.REPLACED);
+				} catch (ExecutionException e) {
+					loadExceptionCount.increment();
+					log.warn("exception thrown during refresh", e.getCause());
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void invalidate(Object key) {
+		Object old = map.remove(key);
+		if (old instanceof Node)
+			removed((Node<K, V, C>) old, RemovalCause.EXPLICIT);
+	}
+
+	@Override
+	public void invalidateAll() {
+		for (ContextedKey<K, C> key : map.keySet())
+			invalidate(key);
+	}
+
+	@Override
+	public long size() {
+		return map.size();
+	}
+
+	@Override
+	public CacheStats stats() {
+		return new CacheStats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadExceptionCount.sum(), totalLoadTime.sum(), evictionCount.sum());
+	}
+
+	// drops the expired entries
+	@Override
+	public void cleanUp() {
+		if (expireAfterWriteNanos < 0)
+			return;
+		for (Entry<ContextedKey<K, C>, Object> entry : map.entrySet())
+			node(entry.getKey(), entry.getValue());
+	}
+
+	// CLOCK: the hand goes round the map, an entry read since the last round gets another chance.
+	// one thread evicts at a time, the others don't wait for it
+	@SuppressWarnings("unchecked")
+	private void evictIfNeeded() {
+		if (maximumSize < 0 || map.size() <= maximumSize || !evictionLock.tryLock())
+			return;
+		try {
+			// two rounds clear every accessed flag
+			long steps = 2L * map.size() + 1;
+			while (map.size() > maximumSize && steps-- > 0) {
+				if (hand == null || !hand.hasNext())
+					hand = map.entrySet().iterator();
+				if (!hand.hasNext())
+					return;
+				Entry<ContextedKey<K, C>, Object> entry = hand.next();
+				if (!(entry.getValue() instanceof Node))
+					continue;
+				Node<K, V, C> node = (Node<K, V, C>) entry.getValue();
+				boolean expired = expired(node);
+				if (node.accessed && !expired) {
+					node.accessed = false;
+					continue;
+				}
+				if (map.remove(entry.getKey(), node))
+					removed(node, expired ? RemovalCause.EXPIRED : RemovalCause.SIZE);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	@Override
+	public ConcurrentMap<ContextedKey<K, C>, V> asMap() {
+		return new AsMap();
+	}
+
+	// the values only, the loads in progress aren't seen
+	private class AsMap extends AbstractMap<ContextedKey<K, C>, V> implements ConcurrentMap<ContextedKey<K, C>, V> {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			Node<K, V, C> node = node((ContextedKey<K, C>) key, map.get(key));
+			return (node == null) ? null : node.value;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public V put(ContextedKey<K, C> key, V value) {
+			V old = get(key);
+			ConcurrentMapLoadingCache.this.put(key, value);
+			return old;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V putIfAbsent(ContextedKey<K, C> key, V value) {
+			Node<K, V, C> created = new Node<K, V, C>(key, value);
+			while (true) {
+				Object existing = map.putIfAbsent(key, created);
+				if (existing == null)
+					break;
+				Node<K, V, C> node = node(key, existing);
+				if (node != null)
+					return node.value;
+				// a load in progress, its value won't be kept
+				if (existing instanceof SettableFuture && map.replace(key, existing, created))
+					break;
+			}
+			evictIfNeeded();
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V remove(Object key) {
+			Object old = map.get(key);
+			Node<K, V, C> node = node((ContextedKey<K, C>) key, old);
+			if (node == null || !map.remove(key, node))
+				return null;
+			removed(node, RemovalCause.EXPLICIT);
+			return node.value;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean remove(Object key, Object value) {
+			Node<K, V, C> node = node((ContextedKey<K, C>) key, map.get(key));
+			if (node == null || !node.value.equals(value) || !map.remove(key, node))
+				return false;
+			removed(node, RemovalCause.EXPLICIT);
+			return true;
+		}
+
+		@Override
+		public boolean replace(ContextedKey<K, C> key, V oldValue, V newValue) {
+			Node<K, V, C> node = node(key, map.get(key));
+			if (node == null || !node.value.equals(oldValue) || !map.replace(key, node, new Node<K, V, C>(key, newValue)))
+				return false;
+			removed(node, RemovalCause.REPLACED);
+			return true;
+		}
+
+		@Override
+		public V replace(ContextedKey<K, C> key, V value) {
+			Node<K, V, C> node = node(key, map.get(key));
+			if (node == null || !map.replace(key, node, new Node<K, V, C>(key, value)))
+				return null;
+			removed(node, RemovalCause.REPLACED);
+			return node.value;
+		}
+
+		@Override
+		public void clear() {
+			invalidateAll();
+		}
+
+		@Override
+		public Set<Entry<ContextedKey<K, C>, V>> entrySet() {
+			return new AbstractSet<Entry<ContextedKey<K, C>, V>>() {
+				@Override
+				public Iterator<Entry<ContextedKey<K, C>, V>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return map.size();
+				}
+			};
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<ContextedKey<K, C>, V>> {
+
+		private final Iterator<Entry<ContextedKey<K, C>, Object>> entries = map.entrySet().iterator();
+		private ContextedKey<K, C> nextKey = null;
+		private Node<K, V, C> nextNode = null;
+		private ContextedKey<K, C> lastKey = null;
+		private Node<K, V, C> lastNode = null;
+
+		@Override
+		public boolean hasNext() {
+			while (nextNode == null && entries.hasNext()) {
+				Entry<ContextedKey<K, C>, Object> entry = entries.next();
+				nextNode = node(entry.getKey(), entry.getValue());
+				nextKey = entry.getKey();
+			}
+			return nextNode != null;
+		}
+
+		@Override
+		public Entry<ContextedKey<K, C>, V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			lastKey = nextKey;
+			lastNode = nextNode;
+			nextNode = null;
+			return Maps.immutableEntry(lastNode.key, lastNode.value);
+		}
+
+		@Override
+		public void remove() {
+			if (lastNode == null)
+				throw new IllegalStateException();
+			if (map.remove(lastKey, lastNode))
+				removed(lastNode, RemovalCause.EXPLICIT);
+			lastNode = null;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package hu.plajko.cache;
+
+import com.google.common.base.Objects;
+
+// the counters of one context, like CacheStats for the whole cache
+public final class ContextCacheStats {
+
+	private final long requestCount;
+	private final long missCount;
+	private final long loadSuccessCount;
+	private final long loadExceptionCount;
+	private final long totalLoadTime;
+	private final long evictionCount;
+	private final long loadTime50;
+	private final long loadTime99;
+	private final long loadTimeMax;
+
+	ContextCacheStats(long requestCount, long missCount, long loadSuccessCount, long loadExceptionCount, long totalLoadTime, long evictionCount,
+			LatencyHistogram loadTimes) {
+		this.requestCount = requestCount;
+		this.missCount = missCount;
+		this.loadSuccessCount = loadSuccessCount;
+		this.loadExceptionCount = loadExceptionCount;
+		this.totalLoadTime = totalLoadTime;
+		this.evictionCount = evictionCount;
+		this.loadTime50 = loadTimes.percentile(50.0d);
+		this.loadTime99 = loadTimes.percentile(99.0d);
+		this.loadTimeMax = loadTimes.percentile(100.0d);
+	}
+
+	public long requestCount() {
+		return requestCount;
+	}
+
+	// requests that didn't load, misses of the plain LoadingCache methods aren't requests here
+	public long hitCount() {
+		return Math.max(0, requestCount - missCount);
+	}
+
+	public double hitRate() {
+		return (requestCount == 0) ? 1.0d : (double) hitCount() / requestCount;
+	}
+
+	public long missCount() {
+		return missCount;
+	}
+
+	public long loadSuccessCount() {
+		return loadSuccessCount;
+	}
+
+	public long loadExceptionCount() {
+		return loadExceptionCount;
+	}
+
+	// nanoseconds
+	public long totalLoadTime() {
+		return totalLoadTime;
+	}
+
+	public double averageLoadPenalty() {
+		long loadCount = loadSuccessCount + loadExceptionCount;
+		return (loadCount == 0) ? 0.0d : (double) totalLoadTime / loadCount;
+	}
+
+	// nanoseconds, from the load time histogram
+	public long loadTime50thPercentile() {
+		return loadTime50;
+	}
+
+	public long loadTime99thPercentile() {
+		return loadTime99;
+	}
+
+	public long loadTimeMax() {
+		return loadTimeMax;
+	}
+
+	public long evictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)//
+				.add("requestCount", requestCount)//
+				.add("hitCount", hitCount())//
+				.add("missCount", missCount)//
+				.add("loadSuccessCount", loadSuccessCount)//
+				.add("loadExceptionCount", loadExceptionCount)//
+				.add("totalLoadTime", totalLoadTime)//
+				.add("loadTime50", loadTime50)//
+				.add("loadTime99", loadTime99)//
+				.add("evictionCount", evictionCount)//
+				.toString();
+	}
+}
@@ -0,0 +1,188 @@
+package hu.plajko.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// the resident keys of every context, kept up to date by the loader, the puts and the removal listener.
+// a key is owned by a context in each partition, a partitioned cache has an entry of it in each.
+class ContextIndex<K, V, C> {
+
+	// the context of a key's value, and the value's identity hash: a late notification of an older
+	// value mustn't unindex the one cached since then, and the value itself isn't held
+	private class Owner {
+		private final Object contextKey;
+		// the one the entry was cached with, it finds the entry's partition
+		private final C context;
+		private final int valueId;
+
+		Owner(Object contextKey, C context, int valueId) {
+			this.contextKey = contextKey;
+			this.context = context;
+			this.valueId = valueId;
+		}
+	}
+
+	private final Function<? super C, ?> contextKey;
+	// the partition of a context, set before the cache is used
+	private Function<? super C, ?> partitioner = Functions.constant(null);
+
+	// the context a key was last loaded or put with in its partition, ContextedKey.equals ignores it
+	private final ConcurrentMap<PartitionKey, Owner> owners = new ConcurrentHashMap<PartitionKey, Owner>();
+	private final ConcurrentMap<Object, Set<PartitionKey>> keysByContext = new ConcurrentHashMap<Object, Set<PartitionKey>>();
+
+	ContextIndex(Function<? super C, ?> contextKey) {
+		this.contextKey = contextKey;
+	}
+
+	void partitionBy(Function<? super C, ?> partitioner) {
+		this.partitioner = partitioner;
+	}
+
+	private Object contextKey(C context) {
+		Object key = contextKey.apply(context);
+		return (key == null) ? Void.TYPE : key;
+	}
+
+	private PartitionKey partitionKey(C context, K key) {
+		return new PartitionKey(partitioner.apply(context), key);
+	}
+
+	// the value is about to be cached, loaded or put
+	void loaded(ContextedKey<K, C> contextedKey, V value) {
+		PartitionKey key = partitionKey(contextedKey.getContext(), contextedKey.getKey());
+		Object context = contextKey(contextedKey.getContext());
+		Owner previous = owners.put(key, new Owner(context, contextedKey.getContext(), System.identityHashCode(value)));
+		if (previous != null && !previous.contextKey.equals(context))
+			remove(previous.contextKey, key);
+		if (previous == null || !previous.contextKey.equals(context))
+			add(context, key);
+	}
+
+	void removed(C context, K key, V value) {
+		Object indexKey = contextKey(context);
+		PartitionKey partitionKey = partitionKey(context, key);
+		Owner owner = owners.get(partitionKey);
+		// a key cached again since then belongs to its new value; a collected value isn't known
+		if (owner == null || !owner.contextKey.equals(indexKey) || (value != null && owner.valueId != System.identityHashCode(value)))
+			return;
+		if (owners.remove(partitionKey, owner))
+			remove(indexKey, partitionKey);
+	}
+
+	// the keys of the entries owned by the context, with the contexts they were cached with; a copy,
+	// the index changes while they're invalidated
+	List<ContextedKey<K, C>> owned(C context) {
+		Object indexKey = contextKey(context);
+		Set<PartitionKey> keys = keysByContext.get(indexKey);
+		if (keys == null)
+			return Collections.emptyList();
+		List<PartitionKey> copy;
+		synchronized (keys) {
+			copy = new ArrayList<PartitionKey>(keys);
+		}
+		List<ContextedKey<K, C>> owned = new ArrayList<ContextedKey<K, C>>(copy.size());
+		for (PartitionKey key : copy) {
+			Owner owner = owners.get(key);
+			if (owner != null && owner.contextKey.equals(indexKey)) {
+				@SuppressWarnings("unchecked")
+				K k = (K) key.getKey();
+				owned.add(new ContextedKey<K, C>(k, owner.context));
+			}
+		}
+		return owned;
+	}
+
+	private void add(Object context, PartitionKey key) {
+		while (true) {
+			Set<PartitionKey> keys = keysByContext.get(context);
+			if (keys == null) {
+				Set<PartitionKey> created = new HashSet<PartitionKey>();
+				keys = keysByContext.putIfAbsent(context, created);
+				if (keys == null)
+					keys = created;
+			}
+			synchronized (keys) {
+				// an emptied set is dropped from the map, a new one has to be added then
+				if (keysByContext.get(context) == keys) {
+					keys.add(key);
+					return;
+				}
+			}
+		}
+	}
+
+	private void remove(Object context, PartitionKey key) {
+		Set<PartitionKey> keys = keysByContext.get(context);
+		if (keys == null)
+			return;
+		synchronized (keys) {
+			keys.remove(key);
+			if (keys.isEmpty())
+				keysByContext.remove(context, keys);
+		}
+	}
+
+	CacheLoader<ContextedKey<K, C>, V> indexing(CacheLoader<ContextedKey<K, C>, V> loader) {
+		return new ForwardingCacheLoader<ContextedKey<K, C>, V>(loader) {
+			@Override
+			public V load(ContextedKey<K, C> key) throws Exception {
+				V value = super.load(key);
+				loaded(key, value);
+				return value;
+			}
+
+			@Override
+			public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+				Map<ContextedKey<K, C>, V> values = super.loadAll(keys);
+				for (Entry<ContextedKey<K, C>, V> entry : values.entrySet())
+					loaded(entry.getKey(), entry.getValue());
+				return values;
+			}
+
+			@Override
+			public ListenableFuture<V> reload(final ContextedKey<K, C> key, V oldValue) throws Exception {
+				ListenableFuture<V> value = super.reload(key, oldValue);
+				Futures.addCallback(value, new FutureCallback<V>() {
+					@Override
+					public void onSuccess(V result) {
+						loaded(key, result);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+					}
+				});
+				return value;
+			}
+		};
+	}
+
+	// updates the index, then passes the notification on
+	ContextedRemovalListener<K, V, C> indexing(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				// a replaced value keeps its entry
+				if (cause != RemovalCause.REPLACED)
+					removed(context, key, value);
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+}
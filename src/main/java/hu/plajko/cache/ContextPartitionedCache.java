@@ -0,0 +1,284 @@
+package hu.plajko.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+
+// every partition of contexts gets its own cache with its own limits
+class ContextPartitionedCache<K, V, C> extends RoutingLoadingCache<ContextedKey<K, C>, V> {
+
+	private final ContextedCacheBuilder<K, V, C> builder;
+	private final CacheLoader<ContextedKey<K, C>, V> loader;
+	private final ConcurrentMap<Object, LoadingCache<ContextedKey<K, C>, V>> partitions = new ConcurrentHashMap<Object, LoadingCache<ContextedKey<K, C>, V>>();
+	// by partition, only kept if there's a maximumTotalSize
+	private final ConcurrentMap<Object, Recency> recencies = new ConcurrentHashMap<Object, Recency>();
+	private final Object trimLock = new Object();
+	// the keys trim() is removing, their EXPLICIT notifications are reported as SIZE
+	private final Set<ContextedKey<K, C>> trimming = Collections.newSetFromMap(new ConcurrentHashMap<ContextedKey<K, C>, Boolean>());
+	private final AtomicLong trimCount = new AtomicLong();
+
+	// set by the loader, the entries are trimmed once they're in the cache
+	private volatile boolean loaded = false;
+
+	ContextPartitionedCache(ContextedCacheBuilder<K, V, C> builder, CacheLoader<ContextedKey<K, C>, V> loader) {
+		this.builder = builder;
+		this.loader = (builder.maximumTotalSize > 0) ? new TrimmingLoader(loader) : loader;
+	}
+
+	// the keys of a partition, least recently used first. a hit only moves its key if the lock is
+	// free, so the readers don't wait for each other; a load or put always records its key
+	private class Recency {
+		private final LinkedHashMap<ContextedKey<K, C>, Boolean> keys = new LinkedHashMap<ContextedKey<K, C>, Boolean>(16, 0.75f, true);
+		private final ReentrantLock lock = new ReentrantLock();
+
+		void written(ContextedKey<K, C> key) {
+			lock.lock();
+			try {
+				keys.put(key, Boolean.TRUE);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void read(ContextedKey<K, C> key) {
+			if (!lock.tryLock())
+				return;
+			try {
+				keys.get(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void removed(ContextedKey<K, C> key) {
+			lock.lock();
+			try {
+				keys.remove(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// null if no key is known
+		ContextedKey<K, C> eldest() {
+			lock.lock();
+			try {
+				return keys.isEmpty() ? null : keys.keySet().iterator().next();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private Object partition(C context) {
+		return Preconditions.checkNotNull(builder.partitioner.apply(context), "no partition for context %s", context);
+	}
+
+	// null if there's no maximumTotalSize
+	private Recency recency(ContextedKey<K, C> key) {
+		if (builder.maximumTotalSize <= 0)
+			return null;
+		Object partition = partition(key.getContext());
+		Recency recency = recencies.get(partition);
+		if (recency == null) {
+			recencies.putIfAbsent(partition, new Recency());
+			recency = recencies.get(partition);
+		}
+		return recency;
+	}
+
+	private void written(ContextedKey<K, C> key) {
+		Recency recency = recency(key);
+		if (recency != null)
+			recency.written(key);
+	}
+
+	private void read(ContextedKey<K, C> key) {
+		Recency recency = recency(key);
+		if (recency != null)
+			recency.read(key);
+	}
+
+	@Override
+	LoadingCache<ContextedKey<K, C>, V> route(Object key, boolean create) {
+		if (!(key instanceof ContextedKey))
+			return null;
+		@SuppressWarnings("unchecked")
+		C context = ((ContextedKey<K, C>) key).getContext();
+		Object partition = partition(context);
+		LoadingCache<ContextedKey<K, C>, V> cache = partitions.get(partition);
+		if (cache == null && create) {
+			synchronized (partitions) {
+				cache = partitions.get(partition);
+				if (cache == null) {
+					CacheBuilder<Object, Object> partitionBuilder = builder.partitionBuilders.apply(partition);
+					cache = (partitionBuilder == null) ? builder.buildCache(loader) : builder.buildCache(partitionBuilder, loader);
+					partitions.put(partition, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	@Override
+	Collection<LoadingCache<ContextedKey<K, C>, V>> caches() {
+		return partitions.values();
+	}
+
+	@Override
+	public V get(ContextedKey<K, C> key) throws ExecutionException {
+		V value = super.get(key);
+		read(key);
+		trimIfLoaded();
+		return value;
+	}
+
+	@Override
+	public V getIfPresent(ContextedKey<K, C> key) {
+		V value = super.getIfPresent(key);
+		if (value != null)
+			read(key);
+		return value;
+	}
+
+	@Override
+	public ImmutableMap<ContextedKey<K, C>, V> getAll(Iterable<? extends ContextedKey<K, C>> keys) throws ExecutionException {
+		ImmutableMap<ContextedKey<K, C>, V> values = super.getAll(keys);
+		if (builder.maximumTotalSize > 0)
+			for (ContextedKey<K, C> key : values.keySet())
+				read(key);
+		trimIfLoaded();
+		return values;
+	}
+
+	@Override
+	public ImmutableMap<ContextedKey<K, C>, V> getAllPresent(Iterable<? extends ContextedKey<K, C>> keys) {
+		ImmutableMap<ContextedKey<K, C>, V> values = super.getAllPresent(keys);
+		if (builder.maximumTotalSize > 0)
+			for (ContextedKey<K, C> key : values.keySet())
+				read(key);
+		return values;
+	}
+
+	@Override
+	public void put(ContextedKey<K, C> key, V value) {
+		super.put(key, value);
+		written(key);
+		loaded = true;
+		trimIfLoaded();
+	}
+
+	private void trimIfLoaded() {
+		if (loaded && builder.maximumTotalSize > 0) {
+			loaded = false;
+			trim();
+		}
+	}
+
+	// if all the partitions together are over the cap, entries are taken from the largest
+	// partition so a heavy context pays for its own growth. Guava doesn't tell its eviction order,
+	// and a partition's maximumSize can't be lowered, so its least recently used key is removed,
+	// then counted and reported as evicted for its size. the entries put through asMap() aren't
+	// known by the recency, they are taken in iteration order once the known ones are gone.
+	private void trim() {
+		synchronized (trimLock) {
+			long excess = size() - builder.maximumTotalSize;
+			while (excess > 0) {
+				Object largestPartition = null;
+				LoadingCache<ContextedKey<K, C>, V> largest = null;
+				for (Entry<Object, LoadingCache<ContextedKey<K, C>, V>> partition : partitions.entrySet())
+					if (largest == null || partition.getValue().size() > largest.size()) {
+						largestPartition = partition.getKey();
+						largest = partition.getValue();
+					}
+				if (largest == null)
+					return;
+				largest.cleanUp();
+				Recency recency = recencies.get(largestPartition);
+				ContextedKey<K, C> key = (recency == null) ? null : recency.eldest();
+				if (key == null) {
+					Iterator<ContextedKey<K, C>> it = largest.asMap().keySet().iterator();
+					if (!it.hasNext())
+						return;
+					key = it.next();
+				}
+				trimming.add(key);
+				if (largest.asMap().remove(key) != null) {
+					trimCount.incrementAndGet();
+					excess--;
+				} else
+					trimming.remove(key);
+				// gone already if it was removed since it was last used
+				if (recency != null)
+					recency.removed(key);
+			}
+		}
+	}
+
+	ContextedRemovalListener<K, V, C> trimming(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				ContextedKey<K, C> contextedKey = new ContextedKey<K, C>(key, context);
+				if (cause == RemovalCause.EXPLICIT && trimming.remove(contextedKey))
+					cause = RemovalCause.SIZE;
+				// a replaced value keeps its place
+				if (cause != RemovalCause.REPLACED) {
+					Recency recency = recencies.get(partition(context));
+					if (recency != null)
+						recency.removed(contextedKey);
+				}
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+
+	// the trimmed entries are evictions too
+	@Override
+	public CacheStats stats() {
+		return super.stats().plus(new CacheStats(0, 0, 0, 0, 0, trimCount.get()));
+	}
+
+	private class TrimmingLoader extends ForwardingCacheLoader<ContextedKey<K, C>, V> {
+
+		private TrimmingLoader(CacheLoader<ContextedKey<K, C>, V> loader) {
+			super(loader);
+		}
+
+		@Override
+		public V load(ContextedKey<K, C> key) throws Exception {
+			V value = super.load(key);
+			written(key);
+			loaded = true;
+			return value;
+		}
+
+		@Override
+		public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+			Map<ContextedKey<K, C>, V> values = super.loadAll(keys);
+			for (ContextedKey<K, C> key : values.keySet())
+				written(key);
+			loaded = true;
+			return values;
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package hu.plajko.cache;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Function;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// counts requests, loads and evictions per context; hits are the requests that didn't load
+class ContextStatsRecorder<K, V, C> {
+
+	private final Function<? super C, ?> contextKey;
+	private final ConcurrentMap<Object, Counters> counters = new ConcurrentHashMap<Object, Counters>();
+
+	// LongAdders, so the threads of a hot context don't fight over one counter
+	private static class Counters {
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder loadSuccesses = new LongAdder();
+		private final LongAdder loadExceptions = new LongAdder();
+		private final LongAdder totalLoadTime = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+		private final LatencyHistogram loadTimes = new LatencyHistogram();
+	}
+
+	ContextStatsRecorder(Function<? super C, ?> contextKey) {
+		this.contextKey = contextKey;
+	}
+
+	private Counters counters(C context) {
+		Object key = contextKey.apply(context);
+		if (key == null)
+			key = Void.TYPE;
+		Counters c = counters.get(key);
+		if (c == null) {
+			Counters created = new Counters();
+			c = counters.putIfAbsent(key, created);
+			if (c == null)
+				c = created;
+		}
+		return c;
+	}
+
+	void requested(C context, int count) {
+		counters(context).requests.add(count);
+	}
+
+	private void loaded(C context, int misses, long startNanos, boolean success) {
+		loaded(counters(context), misses, System.nanoTime() - startNanos, success);
+	}
+
+	// a bulk load counts as one load for each context in it
+	private void loaded(Iterable<? extends ContextedKey<K, C>> keys, long startNanos, boolean success) {
+		long nanos = System.nanoTime() - startNanos;
+		Set<Counters> loads = new HashSet<Counters>();
+		for (ContextedKey<K, C> key : keys) {
+			Counters c = counters(key.getContext());
+			c.misses.increment();
+			if (loads.add(c))
+				loaded(c, 0, nanos, success);
+		}
+	}
+
+	private void loaded(Counters c, int misses, long nanos, boolean success) {
+		c.misses.add(misses);
+		(success ? c.loadSuccesses : c.loadExceptions).increment();
+		c.totalLoadTime.add(nanos);
+		c.loadTimes.record(nanos);
+	}
+
+	ImmutableMap<Object, ContextCacheStats> snapshot() {
+		ImmutableMap.Builder<Object, ContextCacheStats> builder = ImmutableMap.builder();
+		for (Entry<Object, Counters> entry : counters.entrySet()) {
+			Counters c = entry.getValue();
+			builder.put(entry.getKey(), new ContextCacheStats(c.requests.sum(), c.misses.sum(), c.loadSuccesses.sum(), c.loadExceptions.sum(),
+					c.totalLoadTime.sum(), c.evictions.sum(), c.loadTimes));
+		}
+		return builder.build();
+	}
+
+	CacheLoader<ContextedKey<K, C>, V> recording(CacheLoader<ContextedKey<K, C>, V> loader) {
+		return new ForwardingCacheLoader<ContextedKey<K, C>, V>(loader) {
+			@Override
+			public V load(ContextedKey<K, C> key) throws Exception {
+				long start = System.nanoTime();
+				boolean success = false;
+				try {
+					V value = super.load(key);
+					success = true;
+					return value;
+				} finally {
+					loaded(key.getContext(), 1, start, success);
+				}
+			}
+
+			@Override
+			public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+				long start = System.nanoTime();
+				try {
+					Map<ContextedKey<K, C>, V> values = super.loadAll(keys);
+					loaded(keys, start, true);
+					return values;
+				} catch (UnsupportedOperationException e) {
+					// no bulk loader, the keys are loaded one by one
+					throw e;
+				} catch (Exception e) {
+					loaded(keys, start, false);
+					throw e;
+				}
+			}
+
+			@Override
+			public ListenableFuture<V> reload(final ContextedKey<K, C> key, V oldValue) throws Exception {
+				final long start = System.nanoTime();
+				ListenableFuture<V> value = super.reload(key, oldValue);
+				// a reload isn't a miss, only its time is counted
+				Futures.addCallback(value, new FutureCallback<V>() {
+					@Override
+					public void onSuccess(V result) {
+						loaded(key.getContext(), 0, start, true);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						loaded(key.getContext(), 0, start, false);
+					}
+				});
+				return value;
+			}
+		};
+	}
+
+	ContextedRemovalListener<K, V, C> recording(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				// RemovalCause.wasEvicted() isn't public in this Guava
+				if (cause != RemovalCause.EXPLICIT && cause != RemovalCause.REPLACED)
+					counters(context).evictions.increment();
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+}
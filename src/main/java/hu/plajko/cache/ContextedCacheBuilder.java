@@ -0,0 +1,360 @@
+package hu.plajko.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// builds a ContextedLoadingCache on top of a configured CacheBuilder
+public final class ContextedCacheBuilder<K, V, C> {
+
+	// one of them is null
+	private final CacheBuilder<? super ContextedKey<K, C>, ? super V> cacheBuilder;
+	private final CacheBackend backend;
+	private CacheBuilder<? super ContextedKey<K, C>, ? super V> preparedCacheBuilder = null;
+
+	private ContextedRemovalListener<K, V, C> removalListener = null;
+
+	int maxBatchSize = 0;
+	long maxBatchDelay = 0;
+	TimeUnit maxBatchDelayUnit = TimeUnit.NANOSECONDS;
+
+	Executor asyncExecutor = MoreExecutors.sameThreadExecutor();
+
+	ChunkedLoader<ContextedKey<K, C>, V> chunkedLoader = null;
+
+	Function<? super C, ?> partitioner = null;
+	Function<Object, CacheBuilder<Object, Object>> partitionBuilders = null;
+	long maximumTotalSize = 0;
+	ContextPartitionedCache<K, V, C> partitionedCache = null;
+
+	int shards = 0;
+
+	ContextIndex<K, V, C> index = null;
+
+	ContextStatsRecorder<K, V, C> statsRecorder = null;
+
+	OffHeapStore<K, V, C> offHeapStore = null;
+
+	CacheSnapshots<K, V, C> snapshots = null;
+
+	private long maximumSize = CacheBuilders.UNSET;
+	private long maximumWeight = 0;
+	ContextedWeigher<K, V, C> weigher = null;
+
+	private int removalQueueCapacity = 0;
+	private long removalMaxWait = 0;
+	private TimeUnit removalMaxWaitUnit = TimeUnit.NANOSECONDS;
+	RemovalDispatcher<K, V, C> removalDispatcher = null;
+
+	NegativeCache<K, V, C> negativeCache = null;
+
+	long admissionMaximumSize = 0;
+	AdmissionFilter<K, V, C> admissionFilter = null;
+
+	private ContextedCacheBuilder(CacheBuilder<? super ContextedKey<K, C>, ? super V> cacheBuilder, CacheBackend backend) {
+		this.cacheBuilder = cacheBuilder;
+		this.backend = backend;
+	}
+
+	// the CacheBuilder must not have a removal listener, see removalListener()
+	public static <K, V, C> ContextedCacheBuilder<K, V, C> from(CacheBuilder<? super ContextedKey<K, C>, ? super V> cacheBuilder) {
+		CacheBuilders.checkNoRemovalListener(Preconditions.checkNotNull(cacheBuilder));
+		return new ContextedCacheBuilder<K, V, C>(cacheBuilder, null);
+	}
+
+	// the caches (shards, default partition) are built by the backend, e.g. a ConcurrentMapCacheBackend.
+	// maximumWeight needs a CacheBuilder.
+	public static <K, V, C> ContextedCacheBuilder<K, V, C> from(CacheBackend backend) {
+		return new ContextedCacheBuilder<K, V, C>(null, Preconditions.checkNotNull(backend));
+	}
+
+	// set here instead of on the CacheBuilder, from() rejects a CacheBuilder that has one
+	public ContextedCacheBuilder<K, V, C> removalListener(ContextedRemovalListener<K, V, C> listener) {
+		Preconditions.checkState(this.removalListener == null, "removal listener was already set");
+		this.removalListener = Preconditions.checkNotNull(listener);
+		return this;
+	}
+
+	// the removal listener gets the notifications on a background thread, at most queueCapacity of
+	// them wait, the rest is dropped after waiting maxWait for space. The off-heap tier still gets
+	// them synchronously.
+	public ContextedCacheBuilder<K, V, C> dispatchRemovalsAsync(int queueCapacity, long maxWait, TimeUnit unit) {
+		Preconditions.checkState(this.removalQueueCapacity == 0, "async removal dispatch was already set");
+		Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+		Preconditions.checkArgument(maxWait >= 0, "maxWait must not be negative");
+		this.removalQueueCapacity = queueCapacity;
+		this.removalMaxWait = maxWait;
+		this.removalMaxWaitUnit = Preconditions.checkNotNull(unit);
+		return this;
+	}
+
+	// concurrent get(context, key) misses are collected for at most maxDelay
+	// or until maxBatchSize keys are waiting, then loaded with one getAll; all of them get its failure
+	public ContextedCacheBuilder<K, V, C> batchLoads(int maxBatchSize, long maxDelay, TimeUnit unit) {
+		Preconditions.checkState(this.maxBatchSize == 0, "batch loading was already set");
+		Preconditions.checkArgument(maxBatchSize > 1, "maxBatchSize must be greater than 1");
+		Preconditions.checkArgument(maxDelay >= 0, "maxDelay must not be negative");
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchDelay = maxDelay;
+		this.maxBatchDelayUnit = Preconditions.checkNotNull(unit);
+		return this;
+	}
+
+	// the misses of getAsync and getAllAsync are loaded here, by default on the calling thread
+	public ContextedCacheBuilder<K, V, C> asyncExecutor(Executor executor) {
+		this.asyncExecutor = Preconditions.checkNotNull(executor);
+		return this;
+	}
+
+	// the misses of getAll(context, keys) are loaded in chunks of at most chunkSize keys,
+	// parallelism of them at a time on the calling thread and the executor
+	public ContextedCacheBuilder<K, V, C> chunkBulkLoads(int chunkSize, int parallelism, Executor executor) {
+		Preconditions.checkState(this.chunkedLoader == null, "chunked bulk loads were already set");
+		Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+		Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+		this.chunkedLoader = new ChunkedLoader<ContextedKey<K, C>, V>(chunkSize, parallelism, Preconditions.checkNotNull(executor));
+		return this;
+	}
+
+	// contexts mapped to the same partition (e.g. their class or tenant id) share a cache,
+	// built from a new CacheBuilder returned by partitionBuilders, or from the one given
+	// to from() if it returns null
+	public ContextedCacheBuilder<K, V, C> partitionBy(Function<? super C, ?> partitioner, Function<Object, CacheBuilder<Object, Object>> partitionBuilders) {
+		Preconditions.checkState(this.partitioner == null, "partitioning was already set");
+		Preconditions.checkState(this.shards == 0, "the cache is already sharded");
+		this.partitioner = Preconditions.checkNotNull(partitioner);
+		this.partitionBuilders = Preconditions.checkNotNull(partitionBuilders);
+		return this;
+	}
+
+	// the partitions together never hold more than maximumTotalSize entries,
+	// the largest one gives up entries when a load would go over it
+	public ContextedCacheBuilder<K, V, C> partitionBy(Function<? super C, ?> partitioner, Function<Object, CacheBuilder<Object, Object>> partitionBuilders,
+			long maximumTotalSize) {
+		Preconditions.checkArgument(maximumTotalSize > 0, "maximumTotalSize must be positive");
+		partitionBy(partitioner, partitionBuilders);
+		this.maximumTotalSize = maximumTotalSize;
+		return this;
+	}
+
+	// the keys are spread over the given number of caches built from the CacheBuilder. They share the
+	// maximumSize and maximumWeight set here, the CacheBuilder must not have a maximumSize; the limits
+	// of a backend apply to each of them.
+	public ContextedCacheBuilder<K, V, C> shards(int shards) {
+		Preconditions.checkState(this.shards == 0, "shards were already set");
+		Preconditions.checkState(this.partitioner == null, "the cache is already partitioned");
+		Preconditions.checkArgument(shards > 0, "shards must be positive");
+		this.shards = shards;
+		return this;
+	}
+
+	// keeps track of the keys loaded with each context for invalidateAll(context)
+	public ContextedCacheBuilder<K, V, C> indexContexts() {
+		return indexContexts(Functions.identity());
+	}
+
+	// contexts with the same contextKey (e.g. tenant id) are invalidated together
+	public ContextedCacheBuilder<K, V, C> indexContexts(Function<? super C, ?> contextKey) {
+		Preconditions.checkState(this.index == null, "context index was already set");
+		this.index = new ContextIndex<K, V, C>(Preconditions.checkNotNull(contextKey));
+		return this;
+	}
+
+	// hits, misses, loads, load times and evictions are counted for every statsKey (e.g. tenant id)
+	// of the contexts, see ContextedLoadingCache.statsByContext()
+	public ContextedCacheBuilder<K, V, C> recordStatsByContext(Function<? super C, ?> statsKey) {
+		Preconditions.checkState(this.statsRecorder == null, "stats by context were already set");
+		this.statsRecorder = new ContextStatsRecorder<K, V, C>(Preconditions.checkNotNull(statsKey));
+		return this;
+	}
+
+	// entries evicted because of maximumSize or maximumWeight are kept serialized in a direct
+	// buffer of capacity bytes, and moved back from there instead of being loaded again
+	public ContextedCacheBuilder<K, V, C> offHeapTier(int capacity, Serializer<V> serializer) {
+		Preconditions.checkState(this.offHeapStore == null, "off-heap tier was already set");
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		this.offHeapStore = new OffHeapStore<K, V, C>(capacity, Preconditions.checkNotNull(serializer));
+		return this;
+	}
+
+	// the same in a file mapped to memory, the OS pages it out when memory is short
+	public ContextedCacheBuilder<K, V, C> offHeapTier(File file, int capacity, Serializer<V> serializer) throws IOException {
+		Preconditions.checkState(this.offHeapStore == null, "off-heap tier was already set");
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		this.offHeapStore = new OffHeapStore<K, V, C>(Preconditions.checkNotNull(file), capacity, Preconditions.checkNotNull(serializer));
+		return this;
+	}
+
+	// lets the cache write its entries to a file and restore them after a restart, a restored
+	// entry lives for the rest of the expireAfterWrite of the CacheBuilder or ConcurrentMapCacheBackend
+	public ContextedCacheBuilder<K, V, C> snapshots(Serializer<K> keySerializer, Serializer<C> contextSerializer, Serializer<V> valueSerializer) {
+		Preconditions.checkState(this.snapshots == null, "snapshots were already set");
+		this.snapshots = new CacheSnapshots<K, V, C>(Preconditions.checkNotNull(keySerializer), Preconditions.checkNotNull(contextSerializer),
+				Preconditions.checkNotNull(valueSerializer));
+		return this;
+	}
+
+	// the number of entries, divided among the shards; set on the CacheBuilder each shard would get all of it
+	public ContextedCacheBuilder<K, V, C> maximumSize(long maximumSize) {
+		Preconditions.checkState(this.maximumSize == CacheBuilders.UNSET, "maximum size was already set");
+		Preconditions.checkState(this.backend == null, "the maximum size of a backend is set on it");
+		Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+		this.maximumSize = maximumSize;
+		return this;
+	}
+
+	// evicts by the estimated heap use of the entries instead of their number, the
+	// CacheBuilder must not have a maximumSize. shards share the budget, the partitions built
+	// from their own CacheBuilder keep its limits.
+	public ContextedCacheBuilder<K, V, C> maximumWeight(long bytes) {
+		return maximumWeight(bytes, ObjectSizeEstimator.<K, V, C> weigher());
+	}
+
+	public ContextedCacheBuilder<K, V, C> maximumWeight(long maximumWeight, ContextedWeigher<K, V, C> weigher) {
+		Preconditions.checkState(this.weigher == null, "maximum weight was already set");
+		Preconditions.checkState(this.maximumSize == CacheBuilders.UNSET, "maximum size was already set");
+		Preconditions.checkState(this.backend == null, "maximum weight needs a CacheBuilder");
+		Preconditions.checkArgument(maximumWeight >= 0, "maximumWeight must not be negative");
+		this.maximumWeight = maximumWeight;
+		this.weigher = Preconditions.checkNotNull(weigher);
+		return this;
+	}
+
+	// the keys the loader returns null for are answered with a CachedMissException for
+	// absentTimeToLive, the failed ones for backoff, doubled after each failure in a row
+	public ContextedCacheBuilder<K, V, C> negativeCaching(long absentTimeToLive, long backoff, long maximumBackoff, TimeUnit unit) {
+		return negativeCaching(Functions.identity(), absentTimeToLive, backoff, maximumBackoff, unit);
+	}
+
+	// a key missing with one context is loaded with the contexts of another contextKey (e.g. tenant id)
+	public ContextedCacheBuilder<K, V, C> negativeCaching(Function<? super C, ?> contextKey, long absentTimeToLive, long backoff, long maximumBackoff,
+			TimeUnit unit) {
+		Preconditions.checkState(this.negativeCache == null, "negative caching was already set");
+		Preconditions.checkArgument(absentTimeToLive >= 0, "absentTimeToLive must not be negative");
+		Preconditions.checkArgument(backoff >= 0 && maximumBackoff >= backoff, "backoff must be between 0 and maximumBackoff");
+		this.negativeCache = new NegativeCache<K, V, C>(Preconditions.checkNotNull(contextKey), absentTimeToLive, backoff, maximumBackoff,
+				Preconditions.checkNotNull(unit));
+		return this;
+	}
+
+	// while the cache is full, a value loaded by get(context, key) is only cached if its key is
+	// requested more often than the entries the cache evicts; maximumSize is the one of the cache
+	// (of all shards)
+	public ContextedCacheBuilder<K, V, C> admissionFilter(long maximumSize) {
+		Preconditions.checkState(this.admissionMaximumSize == 0, "admission filter was already set");
+		Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive");
+		this.admissionMaximumSize = maximumSize;
+		return this;
+	}
+
+	public ContextedLoadingCache<K, V, C> build(ContextedCacheLoader<K, V, C> contextedLoader) {
+		CacheLoader<ContextedKey<K, C>, V> loader = contextedLoader;
+		if (negativeCache != null)
+			loader = negativeCache.caching(loader);
+		if (admissionMaximumSize > 0)
+			admissionFilter = new AdmissionFilter<K, V, C>(admissionMaximumSize, (statsRecorder == null) ? loader : statsRecorder.recording(loader));
+		if (offHeapStore != null) {
+			// the partitions' own expirations aren't known here
+			if (cacheBuilder != null)
+				offHeapStore.expireAfter(CacheBuilders.expireAfterWriteNanos(cacheBuilder), CacheBuilders.expireAfterAccessNanos(cacheBuilder));
+			if (partitioner != null)
+				offHeapStore.partitionBy(partitioner);
+			loader = offHeapStore.reading(loader);
+		}
+		if (snapshots != null) {
+			if (cacheBuilder != null)
+				snapshots.expireAfterWrite(CacheBuilders.expireAfterWriteNanos(cacheBuilder));
+			else if (backend instanceof ConcurrentMapCacheBackend)
+				snapshots.expireAfterWrite(((ConcurrentMapCacheBackend) backend).expireAfterWriteNanos());
+			loader = snapshots.recording(loader);
+		}
+		if (statsRecorder != null)
+			loader = statsRecorder.recording(loader);
+		if (index != null) {
+			if (partitioner != null)
+				index.partitionBy(partitioner);
+			loader = index.indexing(loader);
+		}
+		if (removalQueueCapacity > 0 && removalListener != null)
+			removalDispatcher = new RemovalDispatcher<K, V, C>(removalListener, removalQueueCapacity, removalMaxWait, removalMaxWaitUnit);
+		LoadingCache<ContextedKey<K, C>, V> delegate;
+		if (partitioner != null)
+			delegate = partitionedCache = new ContextPartitionedCache<K, V, C>(this, loader);
+		else if (shards > 1) {
+			Preconditions.checkState(cacheBuilder == null || CacheBuilders.maximumSize(cacheBuilder) == CacheBuilders.UNSET,
+					"the CacheBuilder's maximumSize would apply to each shard, set it with ContextedCacheBuilder.maximumSize instead");
+			List<LoadingCache<ContextedKey<K, C>, V>> caches = new ArrayList<LoadingCache<ContextedKey<K, C>, V>>();
+			for (int i = 0; i < shards; i++)
+				caches.add(buildCache(loader));
+			delegate = new ShardedLoadingCache<ContextedKey<K, C>, V>(caches);
+		} else
+			delegate = buildCache(loader);
+		return new ContextedLoadingCache<K, V, C>(delegate, this);
+	}
+
+	// the CacheBuilder given to from() can be built several times, but gets the listener only once
+	synchronized LoadingCache<ContextedKey<K, C>, V> buildCache(CacheLoader<ContextedKey<K, C>, V> loader) {
+		if (backend != null)
+			return backend.build(loader, listener());
+		if (preparedCacheBuilder == null)
+			preparedCacheBuilder = prepare(bounded(cacheBuilder));
+		return preparedCacheBuilder.build(loader);
+	}
+
+	LoadingCache<ContextedKey<K, C>, V> buildCache(CacheBuilder<Object, Object> builder, CacheLoader<ContextedKey<K, C>, V> loader) {
+		CacheBuilders.checkNoRemovalListener(builder);
+		return prepare(builder).build(loader);
+	}
+
+	// the limits set here, divided among the shards
+	private CacheBuilder<? super ContextedKey<K, C>, ? super V> bounded(CacheBuilder<? super ContextedKey<K, C>, ? super V> builder) {
+		int parts = Math.max(shards, 1);
+		if (maximumSize != CacheBuilders.UNSET)
+			return builder.maximumSize((maximumSize + parts - 1) / parts);
+		if (weigher == null)
+			return builder;
+		return builder.maximumWeight(maximumWeight / parts).weigher(weigher);
+	}
+
+	// the off-heap tier stores an evicted value before the next load of its key could look for it
+	private ContextedRemovalListener<K, V, C> userListener() {
+		ContextedRemovalListener<K, V, C> listener = (removalDispatcher != null) ? removalDispatcher.queueing() : removalListener;
+		return (offHeapStore == null) ? listener : offHeapStore.storing(listener);
+	}
+
+	private CacheBuilder<? super ContextedKey<K, C>, ? super V> prepare(CacheBuilder<? super ContextedKey<K, C>, ? super V> builder) {
+		ContextedRemovalListener<K, V, C> listener = listener();
+		if (listener == null)
+			return builder;
+		return builder.removalListener(listener);
+	}
+
+	// null if there's nothing to notify
+	private ContextedRemovalListener<K, V, C> listener() {
+		// the bookkeeping below has to be done before the next load of the key, it isn't queued
+		ContextedRemovalListener<K, V, C> listener = userListener();
+		if (snapshots != null)
+			listener = snapshots.recording(listener);
+		if (statsRecorder != null)
+			listener = statsRecorder.recording(listener);
+		if (admissionFilter != null)
+			listener = admissionFilter.watching(listener);
+		if (index != null)
+			listener = index.indexing(listener);
+		// the outermost, the ones above get the cause it reports
+		if (partitionedCache != null && maximumTotalSize > 0)
+			listener = partitionedCache.trimming(listener);
+		return listener;
+	}
+}
@@ -1,13 +1,37 @@
 package hu.plajko.cache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public abstract class ContextedCacheLoader<K, V, C> extends CacheLoader<ContextedKey<K, C>, V> {
 
+	// runs the per-context groups of a bulk load and the reloads
+	private final Executor executor;
+
+	public ContextedCacheLoader() {
+		this(MoreExecutors.sameThreadExecutor());
+	}
+
+	public ContextedCacheLoader(Executor executor) {
+		this.executor = Preconditions.checkNotNull(executor);
+	}
+
 	// must be implemented
 	public abstract V load(C context, K key) throws Exception;
 
@@ -16,53 +40,86 @@ public abstract class ContextedCacheLoader<K, V, C> extends CacheLoader<Contexte
 		return load(key.getContext(), key.getKey());
 	}
 
+	// default implementation, can be overridden
+	// the value is reloaded on the executor, the cache serves oldValue until it's done
+	public ListenableFuture<V> reload(final C context, final K key, V oldValue) throws Exception {
+		ListenableFutureTask<V> task = ListenableFutureTask.create(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				return load(context, key);
+			}
+		});
+		executor.execute(task);
+		return task;
+	}
+
+	@Override
+	public final ListenableFuture<V> reload(ContextedKey<K, C> key, V oldValue) throws Exception {
+		return reload(key.getContext(), key.getKey(), oldValue);
+	}
+
 	// default implementation, can be overridden
 	public Map<K, V> loadAll(final C context, final Iterable<? extends K> keys) throws Exception {
-		return MapTransformer.transformMapKeys(//
-				super.loadAll(Iterables.transform(keys, new Function<K, ContextedKey<K, C>>() {
-					@Override
-					public ContextedKey<K, C> apply(K key) {
-						return new ContextedKey<K, C>(key, context);
-					}
-				})),//
-				new Function<ContextedKey<K, C>, K>() {
-					@Override
-					public K apply(ContextedKey<K, C> contextedKey) {
-						return contextedKey.getKey();
-					}
-				});
+		return MapTransformer.unwrapKeys(super.loadAll(Iterables.transform(keys, new Function<K, ContextedKey<K, C>>() {
+			@Override
+			public ContextedKey<K, C> apply(K key) {
+				return new ContextedKey<K, C>(key, context);
+			}
+		})));
 	}
 
-	private class ContextHolder {
-		private C context;
+	@Override
+	public final Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+		// a bulk miss may contain keys of several contexts
+		Map<C, List<K>> groups = new LinkedHashMap<C, List<K>>();
+		for (ContextedKey<K, C> contextedKey : keys) {
+			List<K> group = groups.get(contextedKey.getContext());
+			if (group == null) {
+				group = new ArrayList<K>();
+				groups.put(contextedKey.getContext(), group);
+			}
+			group.add(contextedKey.getKey());
+		}
 
-		public C getContext() {
-			return context;
+		// the first group is loaded on the calling thread, the others on the executor
+		List<FutureTask<Map<K, V>>> tasks = new ArrayList<FutureTask<Map<K, V>>>();
+		List<C> contexts = new ArrayList<C>(groups.keySet());
+		for (int i = 1; i < contexts.size(); i++) {
+			final C context = contexts.get(i);
+			final List<K> group = groups.get(context);
+			FutureTask<Map<K, V>> task = new FutureTask<Map<K, V>>(new Callable<Map<K, V>>() {
+				@Override
+				public Map<K, V> call() throws Exception {
+					return loadAll(context, group);
+				}
+			});
+			executor.execute(task);
+			tasks.add(task);
 		}
 
-		public void setContext(C context) {
-			this.context = context;
+		Map<ContextedKey<K, C>, V> result = new HashMap<ContextedKey<K, C>, V>();
+		try {
+			if (!contexts.isEmpty())
+				putAll(result, contexts.get(0), loadAll(contexts.get(0), groups.get(contexts.get(0))));
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					putAll(result, contexts.get(i + 1), tasks.get(i).get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			// don't leave the other groups running after a failure
+			for (FutureTask<Map<K, V>> task : tasks)
+				task.cancel(true);
 		}
+		return result;
 	}
 
-	@Override
-	public final Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
-		final ContextHolder cHolder = new ContextHolder();
-		if (keys != null && keys.iterator().hasNext())
-			cHolder.setContext(keys.iterator().next().getContext());
-		return MapTransformer.transformMapKeys(//
-				loadAll(cHolder.getContext(), Iterables.transform(keys, new Function<ContextedKey<K, C>, K>() {
-					@Override
-					public K apply(ContextedKey<K, C> contextedKey) {
-						return contextedKey.getKey();
-					}
-				})),//
-				new Function<K, ContextedKey<K, C>>() {
-					@Override
-					public ContextedKey<K, C> apply(K value) {
-						return new ContextedKey<K, C>(value, cHolder.getContext());
-					}
-				});
-
+	private void putAll(Map<ContextedKey<K, C>, V> result, C context, Map<K, V> loaded) {
+		for (Entry<K, V> entry : loaded.entrySet())
+			result.put(new ContextedKey<K, C>(entry.getKey(), context), entry.getValue());
 	}
-}
\ No newline at end of file
+}
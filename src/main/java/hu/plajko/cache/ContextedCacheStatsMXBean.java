@@ -0,0 +1,28 @@
+package hu.plajko.cache;
+
+import java.util.Map;
+
+// per context counters over JMX, the contexts are keyed by the string form of their stats key
+public interface ContextedCacheStatsMXBean {
+
+	public long getSize();
+
+	public Map<String, Long> getRequestCounts();
+
+	public Map<String, Long> getHitCounts();
+
+	public Map<String, Double> getHitRates();
+
+	public Map<String, Long> getMissCounts();
+
+	public Map<String, Long> getLoadSuccessCounts();
+
+	public Map<String, Long> getLoadExceptionCounts();
+
+	public Map<String, Long> getEvictionCounts();
+
+	// nanoseconds
+	public Map<String, Double> getAverageLoadPenalties();
+
+	public Map<String, Long> getLoadTime99thPercentiles();
+}
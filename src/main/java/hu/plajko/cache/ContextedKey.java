@@ -11,6 +11,12 @@ public class ContextedKey<K, C> {
 		this.context = context;
 	}
 
+	// only for the reused lookup keys of ContextedLoadingCache, a key in a map must not change
+	void set(K key, C context) {
+		this.key = key;
+		this.context = context;
+	}
+
 	public K getKey() {
 		return key;
 	}
@@ -1,39 +1,722 @@
 package hu.plajko.cache;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.ForwardingLoadingCache.SimpleForwardingLoadingCache;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+public class ContextedLoadingCache<K, V, C> extends SimpleForwardingLoadingCache<ContextedKey<K, C>, V> implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(ContextedLoadingCache.class);
+
+	// null if misses are loaded one by one
+	private final LoadBatcher<K, V, C> batcher;
+
+	// runs the loads of getAsync and getAllAsync
+	private final Executor asyncExecutor;
+
+	// null if invalidateAll(context) has to look through all the keys
+	private final ContextIndex<K, V, C> index;
+
+	// null if there are no stats by context
+	private final ContextStatsRecorder<K, V, C> statsRecorder;
+
+	// null if there's no off-heap tier
+	private final OffHeapStore<K, V, C> offHeapStore;
+
+	// null if the cache can't be written to a snapshot
+	private final CacheSnapshots<K, V, C> snapshots;
+
+	// null if every loaded value is cached
+	private final AdmissionFilter<K, V, C> admissionFilter;
+
+	// the configured one or an ObjectSizeEstimator
+	private final ContextedWeigher<K, V, C> weigher;
+
+	// null if misses and failures aren't remembered
+	private final NegativeCache<K, V, C> negativeCache;
+
+	// null if the removal listener is called directly
+	private final RemovalDispatcher<K, V, C> removalDispatcher;
+
+	// null if the misses of a getAll are loaded at once
+	private final ChunkedLoader<ContextedKey<K, C>, V> chunkedLoader;
 
-public class ContextedLoadingCache<K, V, C> extends SimpleForwardingLoadingCache<ContextedKey<K, C>, V> {
+	// misses counted by a getIfPresent probe, the following load counts them again
+	private final AtomicLong probeMisses = new AtomicLong();
 
 	public ContextedLoadingCache(LoadingCache<ContextedKey<K, C>, V> delegate) {
 		super(delegate);
+		this.batcher = null;
+		this.asyncExecutor = MoreExecutors.sameThreadExecutor();
+		this.index = null;
+		this.statsRecorder = null;
+		this.offHeapStore = null;
+		this.snapshots = null;
+		this.admissionFilter = null;
+		this.weigher = ObjectSizeEstimator.weigher();
+		this.negativeCache = null;
+		this.removalDispatcher = null;
+		this.chunkedLoader = null;
 	}
 
-	// special get method
+	ContextedLoadingCache(LoadingCache<ContextedKey<K, C>, V> delegate, ContextedCacheBuilder<K, V, C> builder) {
+		super(delegate);
+		this.batcher = (builder.maxBatchSize > 0) ? //
+				new LoadBatcher<K, V, C>(delegate, builder.maxBatchSize, builder.maxBatchDelay, builder.maxBatchDelayUnit)
+				: null;
+		this.asyncExecutor = builder.asyncExecutor;
+		this.index = builder.index;
+		this.statsRecorder = builder.statsRecorder;
+		this.offHeapStore = builder.offHeapStore;
+		this.snapshots = builder.snapshots;
+		this.admissionFilter = builder.admissionFilter;
+		this.weigher = (builder.weigher == null) ? ObjectSizeEstimator.<K, V, C> weigher() : builder.weigher;
+		this.negativeCache = builder.negativeCache;
+		this.removalDispatcher = builder.removalDispatcher;
+		this.chunkedLoader = builder.chunkedLoader;
+	}
+
+	// a lookup key for every thread, the hits don't allocate
+	private static final class Probe {
+		private final ContextedKey<Object, Object> key = new ContextedKey<Object, Object>(null, null);
+		private boolean inUse = false;
+	}
+
+	private static final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		@Override
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+
+	// the value if it's present, without creating a ContextedKey
+	@SuppressWarnings("unchecked")
+	public V getIfPresent(C context, K key) {
+		Probe probe = probes.get();
+		// a lookup while the probe is in use (e.g. by a removal listener) gets its own key
+		if (probe.inUse)
+			return delegate().getIfPresent(new ContextedKey<K, C>(key, context));
+		probe.inUse = true;
+		probe.key.set(key, context);
+		try {
+			return delegate().getIfPresent((ContextedKey<K, C>) (ContextedKey<?, ?>) probe.key);
+		} finally {
+			probe.key.set(null, null);
+			probe.inUse = false;
+		}
+	}
+
+	// the same with a set of ContextedKeys
+	private static <K, C> boolean contains(Set<ContextedKey<K, C>> set, C context, K key) {
+		Probe probe = probes.get();
+		if (probe.inUse)
+			return set.contains(new ContextedKey<K, C>(key, context));
+		probe.inUse = true;
+		probe.key.set(key, context);
+		try {
+			return set.contains(probe.key);
+		} finally {
+			probe.key.set(null, null);
+			probe.inUse = false;
+		}
+	}
+
+	// special get method, a ContextedKey is only created for a miss
 	public V get(C context, K key) throws ExecutionException {
-		return delegate().get(new ContextedKey<K, C>(key, context));
-	}
-
-	// special getAll method
-	public Map<K, V> getAll(final C context, final Iterable<? extends K> keys) throws Exception {
-		return MapTransformer.transformMapKeys(//
-				delegate().getAll(Iterables.transform(keys, new Function<K, ContextedKey<K, C>>() {
-					@Override
-					public ContextedKey<K, C> apply(K key) {
-						return new ContextedKey<K, C>(key, context);
-					}
-				})),//
-				new Function<ContextedKey<K, C>, K>() {
-					@Override
-					public K apply(ContextedKey<K, C> contextedKey) {
-						return contextedKey.getKey();
-					}
-				});
-	}
-
-}
\ No newline at end of file
+		if (statsRecorder != null)
+			statsRecorder.requested(context, 1);
+		if (admissionFilter != null)
+			admissionFilter.requested(key);
+		V value = getIfPresent(context, key);
+		if (value != null)
+			return value;
+		return loadMissing(new ContextedKey<K, C>(key, context));
+	}
+
+	// after a getIfPresent probe missed
+	private V loadMissing(ContextedKey<K, C> contextedKey) throws ExecutionException {
+		if (admissionFilter != null && !admissionFilter.admits(contextedKey.getKey(), delegate().size()))
+			return admissionFilter.loadWithoutCaching(contextedKey);
+		probeMisses.incrementAndGet();
+		return (batcher == null) ? delegate().get(contextedKey) : batcher.load(contextedKey);
+	}
+
+	// special getAll method, ContextedKeys are only created for the misses
+	public ImmutableMap<K, V> getAll(C context, Iterable<? extends K> keys) throws Exception {
+		if (chunkedLoader != null)
+			return getAllChunked(context, keys);
+		Map<K, V> values = new HashMap<K, V>();
+		Set<ContextedKey<K, C>> missing = new LinkedHashSet<ContextedKey<K, C>>();
+		for (K key : keys) {
+			// a key requested twice is looked up once
+			if (values.containsKey(key) || (!missing.isEmpty() && contains(missing, context, key)))
+				continue;
+			if (admissionFilter != null)
+				admissionFilter.requested(key);
+			V value = getIfPresent(context, key);
+			if (value != null)
+				values.put(key, value);
+			else
+				missing.add(new ContextedKey<K, C>(key, context));
+		}
+		int requested = values.size() + missing.size();
+		// the refused ones are taken out of missing
+		for (Entry<ContextedKey<K, C>, V> entry : loadRefused(missing).entrySet())
+			values.put(entry.getKey().getKey(), entry.getValue());
+		if (!missing.isEmpty()) {
+			probeMisses.addAndGet(missing.size());
+			for (Entry<ContextedKey<K, C>, V> entry : getAll(missing).entrySet())
+				values.put(entry.getKey().getKey(), entry.getValue());
+		}
+		if (statsRecorder != null)
+			statsRecorder.requested(context, requested);
+		return inOrder(keys, values);
+	}
+
+	// takes the misses the admission filter refuses out of missing and loads them without caching,
+	// like get does, so a scan doesn't evict the popular keys
+	private Map<ContextedKey<K, C>, V> loadRefused(Set<ContextedKey<K, C>> missing) throws ExecutionException {
+		if (admissionFilter == null)
+			return ImmutableMap.of();
+		List<ContextedKey<K, C>> refused = new ArrayList<ContextedKey<K, C>>();
+		long size = delegate().size();
+		for (Iterator<ContextedKey<K, C>> i = missing.iterator(); i.hasNext();) {
+			ContextedKey<K, C> key = i.next();
+			if (!admissionFilter.admits(key.getKey(), size)) {
+				refused.add(key);
+				i.remove();
+			}
+		}
+		if (refused.isEmpty())
+			return ImmutableMap.of();
+		Map<ContextedKey<K, C>, V> values = admissionFilter.loadAllWithoutCaching(refused);
+		// without negative caching a key the loader didn't find fails the getAll, as in Guava
+		if (negativeCache == null && values.size() < refused.size())
+			throw new InvalidCacheLoadException("CacheLoader returned null for keys " + refused + ".");
+		return values;
+	}
+
+	// a key that has a cached miss or that the loader didn't find is left out of the result
+	// instead of failing the others: the tombstoned keys aren't loaded, and the values loaded
+	// before Guava 11 gave up on a partial loadAll (InvalidCacheLoadException) or on the first
+	// absent key of a loader without loadAll are cached, the rest is loaded one by one
+	@Override
+	public ImmutableMap<ContextedKey<K, C>, V> getAll(Iterable<? extends ContextedKey<K, C>> keys) throws ExecutionException {
+		if (negativeCache == null)
+			return delegate().getAll(keys);
+		Set<ContextedKey<K, C>> loadable = new LinkedHashSet<ContextedKey<K, C>>();
+		for (ContextedKey<K, C> key : keys)
+			if (!negativeCache.missing(key))
+				loadable.add(key);
+		try {
+			return delegate().getAll(loadable);
+		} catch (InvalidCacheLoadException e) {
+			return getAllFound(loadable);
+		} catch (ExecutionException e) {
+			if (!(e.getCause() instanceof CachedMissException))
+				throw e;
+			return getAllFound(loadable);
+		}
+	}
+
+	private ImmutableMap<ContextedKey<K, C>, V> getAllFound(Set<ContextedKey<K, C>> keys) throws ExecutionException {
+		ImmutableMap.Builder<ContextedKey<K, C>, V> found = ImmutableMap.builder();
+		for (ContextedKey<K, C> key : keys) {
+			// the map view doesn't count the loaded ones as hits
+			V value = delegate().asMap().get(key);
+			if (value != null) {
+				found.put(key, value);
+				continue;
+			}
+			try {
+				found.put(key, delegate().get(key));
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof CachedMissException))
+					throw e;
+			}
+		}
+		return found.build();
+	}
+
+	// the result keeps the order of the requested keys
+	private static <K, V> ImmutableMap<K, V> inOrder(Iterable<? extends K> keys, Map<K, V> values) {
+		ImmutableMap.Builder<K, V> ordered = ImmutableMap.builder();
+		for (K key : keys) {
+			// removed, so a key requested twice is added once
+			V value = values.remove(key);
+			if (value != null)
+				ordered.put(key, value);
+		}
+		return ordered.build();
+	}
+
+	private ImmutableMap<K, V> getAllChunked(C context, Iterable<? extends K> keys) throws Exception {
+		final Map<K, V> values = new HashMap<K, V>();
+		getAll(context, keys, new ChunkConsumer<K, V>() {
+			@Override
+			public void accept(Map<K, V> chunk) {
+				values.putAll(chunk);
+			}
+		});
+		return inOrder(keys, values);
+	}
+
+	// streaming getAll: the present values are passed to the consumer first, then the loaded
+	// ones a chunk at a time, so they needn't be held together
+	public void getAll(C context, Iterable<? extends K> keys, final ChunkConsumer<K, V> consumer) throws Exception {
+		Set<ContextedKey<K, C>> contextedKeys = new LinkedHashSet<ContextedKey<K, C>>();
+		for (K key : keys)
+			contextedKeys.add(new ContextedKey<K, C>(key, context));
+		recordRequests(context, contextedKeys);
+		ImmutableMap<ContextedKey<K, C>, V> present = delegate().getAllPresent(contextedKeys);
+		if (!present.isEmpty())
+			consumer.accept(MapTransformer.unwrapKeys(present));
+		if (present.size() == contextedKeys.size())
+			return;
+
+		contextedKeys.removeAll(present.keySet());
+		Map<ContextedKey<K, C>, V> refused = loadRefused(contextedKeys);
+		if (!refused.isEmpty())
+			consumer.accept(MapTransformer.unwrapKeys(refused));
+		if (contextedKeys.isEmpty())
+			return;
+		probeMisses.addAndGet(contextedKeys.size());
+		if (chunkedLoader == null) {
+			consumer.accept(MapTransformer.unwrapKeys(getAll(contextedKeys)));
+			return;
+		}
+		chunkedLoader.load(this, new ArrayList<ContextedKey<K, C>>(contextedKeys), new ChunkConsumer<ContextedKey<K, C>, V>() {
+			@Override
+			public void accept(Map<ContextedKey<K, C>, V> chunk) throws Exception {
+				consumer.accept(MapTransformer.unwrapKeys(chunk));
+			}
+		});
+	}
+
+	// reloads the value with the given context, the old one is served until it's done
+	public void refresh(C context, K key) {
+		delegate().refresh(new ContextedKey<K, C>(key, context));
+	}
+
+	// invalidates the entries loaded with the context, the others stay
+	public void invalidateAll(C context) {
+		if (offHeapStore != null)
+			offHeapStore.removeAll(context);
+		if (negativeCache != null)
+			negativeCache.invalidateAll(context);
+		if (index == null) {
+			Iterator<ContextedKey<K, C>> it = delegate().asMap().keySet().iterator();
+			while (it.hasNext())
+				if (Objects.equal(context, it.next().getContext()))
+					it.remove();
+			return;
+		}
+		for (ContextedKey<K, C> key : index.owned(context))
+			delegate().invalidate(key);
+	}
+
+	// completes immediately on a hit, a miss is loaded on the configured executor
+	public ListenableFuture<V> getAsync(C context, K key) {
+		return getAsync(context, key, asyncExecutor);
+	}
+
+	public ListenableFuture<V> getAsync(C context, K key, Executor executor) {
+		if (statsRecorder != null)
+			statsRecorder.requested(context, 1);
+		if (admissionFilter != null)
+			admissionFilter.requested(key);
+		V value = getIfPresent(context, key);
+		if (value != null)
+			return Futures.immediateFuture(value);
+		final ContextedKey<K, C> contextedKey = new ContextedKey<K, C>(key, context);
+		return submit(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				return loadMissing(contextedKey);
+			}
+		}, executor);
+	}
+
+	// completes immediately if every key is present, the misses are loaded on the configured executor
+	public ListenableFuture<Map<K, V>> getAllAsync(C context, Iterable<? extends K> keys) {
+		return getAllAsync(context, keys, asyncExecutor);
+	}
+
+	public ListenableFuture<Map<K, V>> getAllAsync(C context, Iterable<? extends K> keys, Executor executor) {
+		Set<ContextedKey<K, C>> contextedKeys = new LinkedHashSet<ContextedKey<K, C>>();
+		for (K key : keys)
+			contextedKeys.add(new ContextedKey<K, C>(key, context));
+		recordRequests(context, contextedKeys);
+		final ImmutableMap<ContextedKey<K, C>, V> present = delegate().getAllPresent(contextedKeys);
+		if (present.size() == contextedKeys.size())
+			return Futures.<Map<K, V>> immediateFuture(MapTransformer.unwrapKeys(present));
+
+		contextedKeys.removeAll(present.keySet());
+		final Set<ContextedKey<K, C>> missing = contextedKeys;
+		return submit(new Callable<Map<K, V>>() {
+			@Override
+			public Map<K, V> call() throws Exception {
+				Map<ContextedKey<K, C>, V> loaded = new HashMap<ContextedKey<K, C>, V>(loadRefused(missing));
+				if (!missing.isEmpty()) {
+					probeMisses.addAndGet(missing.size());
+					loaded.putAll(getAll(missing));
+				}
+				return MapTransformer.unwrapKeys(present, loaded);
+			}
+		}, executor);
+	}
+
+	private void recordRequests(C context, Set<ContextedKey<K, C>> contextedKeys) {
+		if (statsRecorder != null)
+			statsRecorder.requested(context, contextedKeys.size());
+		if (admissionFilter != null)
+			for (ContextedKey<K, C> key : contextedKeys)
+				admissionFilter.requested(key.getKey());
+	}
+
+	private static <T> ListenableFuture<T> submit(final Callable<T> loading, Executor executor) {
+		ListenableFutureTask<T> task = ListenableFutureTask.create(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return loading.call();
+				} catch (ExecutionException e) {
+					// the future would wrap it again
+					throw unwrap(e);
+				} catch (UncheckedExecutionException e) {
+					throw unwrap(e);
+				}
+			}
+		});
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+		return task;
+	}
+
+	private static Exception unwrap(Exception e) {
+		return (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+	}
+
+	// writes the resident entries with their remaining time to live, returns their number
+	public int writeSnapshot(File file) throws IOException {
+		Preconditions.checkState(snapshots != null, "snapshots aren't enabled");
+		return snapshots.write(delegate(), file);
+	}
+
+	// puts the unexpired entries of the file into the cache, returns their number
+	public int restoreSnapshot(File file) throws IOException {
+		Preconditions.checkState(snapshots != null, "snapshots aren't enabled");
+		// through asMap(), so the restored entries get the bookkeeping of a put
+		return snapshots.restore(this, file);
+	}
+
+	public void writeSnapshotOnShutdown(final File file) {
+		Preconditions.checkState(snapshots != null, "snapshots aren't enabled");
+		Runtime.getRuntime().addShutdownHook(new Thread("cache-snapshot-writer") {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(file);
+				} catch (IOException e) {
+					log.error("couldn't write the cache snapshot to {}", file, e);
+				}
+			}
+		});
+	}
+
+	// null if the removal listener is called directly
+	public RemovalDispatcher<K, V, C> removalDispatcher() {
+		return removalDispatcher;
+	}
+
+	// stops the threads of the cache: the queued removal notifications are delivered first, the
+	// later ones on the thread that removes the entry. the entries stay, the cache can still be used
+	@Override
+	public void close() {
+		if (removalDispatcher != null)
+			removalDispatcher.shutdown();
+		if (snapshots != null)
+			snapshots.close();
+	}
+
+	// the weight of the resident entries by contextKey (e.g. tenant id), weighed now
+	public ImmutableMap<Object, Long> weightByContext(Function<? super C, ?> contextKey) {
+		Map<Object, Long> weights = new HashMap<Object, Long>();
+		for (Entry<ContextedKey<K, C>, V> entry : delegate().asMap().entrySet()) {
+			Object key = contextKey.apply(entry.getKey().getContext());
+			if (key == null)
+				key = Void.TYPE;
+			Long weight = weights.get(key);
+			weights.put(key, ((weight == null) ? 0 : weight) + weigher.weigh(entry.getKey(), entry.getValue()));
+		}
+		return ImmutableMap.copyOf(weights);
+	}
+
+	// null if there's no off-heap tier
+	public OffHeapStore<K, V, C> offHeapStore() {
+		return offHeapStore;
+	}
+
+	// the entries only in the off-heap tier aren't seen by the cache, they're dropped here,
+	// like the remembered misses of an invalidated key
+
+	@Override
+	public void put(ContextedKey<K, C> key, V value) {
+		putting(key, value);
+		super.put(key, value);
+	}
+
+	// the bookkeeping of a value cached without a load
+	private void putting(ContextedKey<K, C> key, V value) {
+		if (offHeapStore != null) {
+			offHeapStore.remove(key);
+			offHeapStore.written(key);
+		}
+		if (snapshots != null)
+			snapshots.written(key.getKey());
+		if (negativeCache != null)
+			negativeCache.invalidate(key);
+		if (index != null)
+			index.loaded(key, value);
+	}
+
+	// the writes of the map view get the bookkeeping of put, a conditional one when it succeeded
+	@Override
+	public ConcurrentMap<ContextedKey<K, C>, V> asMap() {
+		final ConcurrentMap<ContextedKey<K, C>, V> map = super.asMap();
+		if (offHeapStore == null && snapshots == null && negativeCache == null && index == null)
+			return map;
+		return new ForwardingConcurrentMap<ContextedKey<K, C>, V>() {
+			@Override
+			protected ConcurrentMap<ContextedKey<K, C>, V> delegate() {
+				return map;
+			}
+
+			@Override
+			public V put(ContextedKey<K, C> key, V value) {
+				putting(key, value);
+				return map.put(key, value);
+			}
+
+			@Override
+			public void putAll(Map<? extends ContextedKey<K, C>, ? extends V> values) {
+				standardPutAll(values);
+			}
+
+			@Override
+			public V putIfAbsent(ContextedKey<K, C> key, V value) {
+				V existing = map.putIfAbsent(key, value);
+				if (existing == null)
+					putting(key, value);
+				return existing;
+			}
+
+			@Override
+			public V replace(ContextedKey<K, C> key, V value) {
+				V previous = map.replace(key, value);
+				if (previous != null)
+					putting(key, value);
+				return previous;
+			}
+
+			@Override
+			public boolean replace(ContextedKey<K, C> key, V oldValue, V newValue) {
+				boolean replaced = map.replace(key, oldValue, newValue);
+				if (replaced)
+					putting(key, newValue);
+				return replaced;
+			}
+		};
+	}
+
+	@Override
+	public void invalidate(Object key) {
+		if (offHeapStore != null && key instanceof ContextedKey)
+			offHeapStore.remove((ContextedKey<?, ?>) key);
+		if (negativeCache != null && key instanceof ContextedKey)
+			negativeCache.invalidate((ContextedKey<?, ?>) key);
+		super.invalidate(key);
+	}
+
+	@Override
+	public void invalidateAll(Iterable<?> keys) {
+		for (Object key : keys) {
+			if (offHeapStore != null && key instanceof ContextedKey)
+				offHeapStore.remove((ContextedKey<?, ?>) key);
+			if (negativeCache != null && key instanceof ContextedKey)
+				negativeCache.invalidate((ContextedKey<?, ?>) key);
+		}
+		super.invalidateAll(keys);
+	}
+
+	@Override
+	public void invalidateAll() {
+		if (offHeapStore != null)
+			offHeapStore.clear();
+		if (negativeCache != null)
+			negativeCache.invalidateAll();
+		super.invalidateAll();
+	}
+
+	// snapshot of the counters of every stats key, empty if they aren't recorded
+	public ImmutableMap<Object, ContextCacheStats> statsByContext() {
+		return (statsRecorder == null) ? ImmutableMap.<Object, ContextCacheStats> of() : statsRecorder.snapshot();
+	}
+
+	// registers statsByContext() as hu.plajko.cache:type=ContextedLoadingCache,name=<name>
+	public ObjectName registerStatsMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName("hu.plajko.cache:type=ContextedLoadingCache,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StatsMXBean(), objectName);
+		return objectName;
+	}
+
+	private class StatsMXBean implements ContextedCacheStatsMXBean {
+
+		private <T> Map<String, T> byContext(Function<ContextCacheStats, T> value) {
+			Map<String, T> values = new TreeMap<String, T>();
+			for (Entry<Object, ContextCacheStats> entry : statsByContext().entrySet())
+				values.put(String.valueOf(entry.getKey()), value.apply(entry.getValue()));
+			return values;
+		}
+
+		@Override
+		public long getSize() {
+			return size();
+		}
+
+		@Override
+		public Map<String, Long> getRequestCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.requestCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getHitCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.hitCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Double> getHitRates() {
+			return byContext(new Function<ContextCacheStats, Double>() {
+				@Override
+				public Double apply(ContextCacheStats stats) {
+					return stats.hitRate();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getMissCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.missCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getLoadSuccessCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.loadSuccessCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getLoadExceptionCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.loadExceptionCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getEvictionCounts() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.evictionCount();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Double> getAverageLoadPenalties() {
+			return byContext(new Function<ContextCacheStats, Double>() {
+				@Override
+				public Double apply(ContextCacheStats stats) {
+					return stats.averageLoadPenalty();
+				}
+			});
+		}
+
+		@Override
+		public Map<String, Long> getLoadTime99thPercentiles() {
+			return byContext(new Function<ContextCacheStats, Long>() {
+				@Override
+				public Long apply(ContextCacheStats stats) {
+					return stats.loadTime99thPercentile();
+				}
+			});
+		}
+	}
+
+	@Override
+	public CacheStats stats() {
+		return delegate().stats().minus(new CacheStats(0, probeMisses.get(), 0, 0, 0, 0));
+	}
+
+}
@@ -0,0 +1,15 @@
+package hu.plajko.cache;
+
+import com.google.common.cache.Weigher;
+
+public abstract class ContextedWeigher<K, V, C> implements Weigher<ContextedKey<K, C>, V> {
+
+	@Override
+	public final int weigh(ContextedKey<K, C> key, V value) {
+		return weigh(key.getContext(), key.getKey(), value);
+	}
+
+	// the context the value was loaded with
+	public abstract int weigh(C context, K key, V value);
+
+}
@@ -0,0 +1,31 @@
+package hu.plajko.cache;
+
+import java.util.Map;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// passes the loads to another loader, subclasses act on them
+class ForwardingCacheLoader<K, V> extends CacheLoader<K, V> {
+
+	private final CacheLoader<K, V> delegate;
+
+	ForwardingCacheLoader(CacheLoader<K, V> delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public V load(K key) throws Exception {
+		return delegate.load(key);
+	}
+
+	@Override
+	public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+		return delegate.loadAll(keys);
+	}
+
+	@Override
+	public ListenableFuture<V> reload(K key, V oldValue) throws Exception {
+		return delegate.reload(key, oldValue);
+	}
+}
@@ -0,0 +1,89 @@
+package hu.plajko.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// count-min sketch of 4 bit counters, 16 in a long. every key has one counter in 4 of them,
+// its frequency is the smallest. after 10 * maximumSize increments all the counters are
+// halved, so the keys that were popular long ago are forgotten.
+class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private final AtomicLongArray table;
+	private final int tableMask;
+	private final int sampleSize;
+	private final AtomicInteger size = new AtomicInteger();
+
+	FrequencySketch(long maximumSize) {
+		int length = Integer.highestOneBit((int) Math.min(Math.max(maximumSize, 16), 1 << 30) - 1) << 1;
+		this.table = new AtomicLongArray(length);
+		this.tableMask = length - 1;
+		this.sampleSize = (int) Math.min(10 * maximumSize, Integer.MAX_VALUE);
+	}
+
+	private static int spread(int h) {
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		return (h >>> 16) ^ h;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & tableMask;
+	}
+
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		// the 4 counters of a key are in different quarters of the longs
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int offset = (start + i) << 2;
+			frequency = Math.min(frequency, (int) ((table.get(indexOf(hash, i)) >>> offset) & 0xfL));
+		}
+		return frequency;
+	}
+
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+			added |= incrementAt(indexOf(hash, i), start + i);
+		if (added && size.incrementAndGet() >= sampleSize)
+			reset();
+	}
+
+	private boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		while (true) {
+			long value = table.get(i);
+			if ((value & mask) == mask)
+				return false;
+			if (table.compareAndSet(i, value, value + (1L << offset)))
+				return true;
+		}
+	}
+
+	private synchronized void reset() {
+		// another thread has just halved them
+		if (size.get() < sampleSize)
+			return;
+		int odd = 0;
+		for (int i = 0; i < table.length(); i++) {
+			while (true) {
+				long value = table.get(i);
+				if (table.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) {
+					odd += Long.bitCount(value & ONE_MASK);
+					break;
+				}
+			}
+		}
+		size.set(Math.max(0, (size.get() - (odd >>> 2)) >>> 1));
+	}
+}
@@ -0,0 +1,25 @@
+package hu.plajko.cache;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+// a Guava cache, from a new CacheBuilder for every cache (e.g. shard) built
+public class GuavaCacheBackend implements CacheBackend {
+
+	private final Supplier<CacheBuilder<Object, Object>> cacheBuilders;
+
+	public GuavaCacheBackend(Supplier<CacheBuilder<Object, Object>> cacheBuilders) {
+		this.cacheBuilders = cacheBuilders;
+	}
+
+	@Override
+	public <K, V, C> LoadingCache<ContextedKey<K, C>, V> build(CacheLoader<ContextedKey<K, C>, V> loader, ContextedRemovalListener<K, V, C> listener) {
+		CacheBuilder<Object, Object> builder = cacheBuilders.get();
+		CacheBuilders.checkNoRemovalListener(builder);
+		if (listener == null)
+			return builder.build(loader);
+		return builder.removalListener(listener).build(loader);
+	}
+}
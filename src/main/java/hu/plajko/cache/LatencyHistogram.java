@@ -0,0 +1,72 @@
+package hu.plajko.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+// log-linear histogram of durations in nanoseconds, every power of two is split into
+// 16 buckets so a percentile is off by at most 1/16 of its value
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// up to 2^40 ns, about 18 minutes, longer ones go to the last bucket
+	private static final int MAX_MAGNITUDE = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+	public void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0, nanos)));
+	}
+
+	public void record(long duration, TimeUnit unit) {
+		record(unit.toNanos(duration));
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// the highest value that falls into the bucket
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+		return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	// e.g. percentile(99.0), 0 if nothing was recorded
+	public long percentile(double percentile) {
+		Preconditions.checkArgument(percentile >= 0.0d && percentile <= 100.0d, "percentile must be between 0 and 100");
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++)
+			count += (snapshot[i] = counts.get(i));
+		long rank = (long) Math.ceil(count * percentile / 100.0d);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen > 0 && seen >= rank)
+				return highestValue(i);
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+	}
+}
@@ -0,0 +1,111 @@
+package hu.plajko.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+// collects concurrent misses and loads them with one getAll call
+class LoadBatcher<K, V, C> {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadBatcher.class);
+
+	private final LoadingCache<ContextedKey<K, C>, V> cache;
+	private final int maxBatchSize;
+	private final long maxDelayNanos;
+
+	private final Object lock = new Object();
+	private Batch open = null;
+
+	LoadBatcher(LoadingCache<ContextedKey<K, C>, V> cache, int maxBatchSize, long maxDelay, TimeUnit unit) {
+		this.cache = cache;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+	}
+
+	private class Batch {
+		private final List<ContextedKey<K, C>> keys = new ArrayList<ContextedKey<K, C>>();
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private final CountDownLatch loaded = new CountDownLatch(1);
+		private volatile Map<ContextedKey<K, C>, V> result = null;
+		// what getAll threw, every caller of the batch gets it
+		private volatile Throwable failure = null;
+
+		private void load() {
+			try {
+				result = cache.getAll(keys);
+			} catch (ExecutionException e) {
+				failed(e);
+			} catch (RuntimeException e) {
+				failed(e);
+			} catch (Error e) {
+				failed(e);
+			} finally {
+				loaded.countDown();
+			}
+		}
+
+		private void failed(Throwable t) {
+			log.warn("batched load of " + keys.size() + " keys failed", t);
+			failure = t;
+		}
+
+		private V get(ContextedKey<K, C> key) throws ExecutionException {
+			Uninterruptibles.awaitUninterruptibly(loaded);
+			Throwable failure = this.failure;
+			if (failure instanceof ExecutionException)
+				// wrapped again, so the stack trace shows this caller
+				throw new ExecutionException(failure.getCause());
+			if (failure != null)
+				throw Throwables.propagate(failure);
+			V value = result.get(key);
+			return (value != null) ? value : cache.get(key);
+		}
+	}
+
+	// called on a miss, blocks until the batch of the key is loaded
+	V load(ContextedKey<K, C> key) throws ExecutionException {
+		Batch batch;
+		boolean leader = false;
+		boolean run = false;
+		synchronized (lock) {
+			if (open == null) {
+				open = new Batch();
+				leader = true;
+			}
+			batch = open;
+			batch.keys.add(key);
+			if (batch.keys.size() >= maxBatchSize) {
+				open = null;
+				run = true;
+			}
+		}
+
+		// the first caller waits for the window to pass or the batch to fill up
+		if (leader && !run) {
+			Uninterruptibles.awaitUninterruptibly(batch.closed, maxDelayNanos, TimeUnit.NANOSECONDS);
+			synchronized (lock) {
+				if (open == batch) {
+					open = null;
+					run = true;
+				}
+			}
+		}
+
+		// the caller that closed the batch loads it
+		if (run) {
+			batch.closed.countDown();
+			batch.load();
+		}
+		return batch.get(key);
+	}
+}
@@ -1,63 +1,27 @@
 package hu.plajko.cache;
 
-import java.util.AbstractMap;
-import java.util.AbstractSet;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
 
-import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 
 class MapTransformer {
 
-	static <K1, K2, V> Map<K2, V> transformMapKeys(final Map<K1, V> map, final Function<K1, K2> keyTransformer) {
-		return new AbstractMap<K2, V>() {
-			@Override
-			public Set<Map.Entry<K2, V>> entrySet() {
-				return new AbstractSet<Map.Entry<K2, V>>() {
-					@Override
-					public Iterator<Map.Entry<K2, V>> iterator() {
-						final Iterator<Entry<K1, V>> it = map.entrySet().iterator();
-						return new Iterator<Map.Entry<K2, V>>() {
-							@Override
-							public boolean hasNext() {
-								return it.hasNext();
-							}
-
-							@Override
-							public Map.Entry<K2, V> next() {
-								final Entry<K1, V> oldEntry = it.next();
-								return new Map.Entry<K2, V>() {
-									@Override
-									public K2 getKey() {
-										return keyTransformer.apply(oldEntry.getKey());
-									}
-
-									@Override
-									public V getValue() {
-										return oldEntry.getValue();
-									}
-
-									@Override
-									public V setValue(V value) {
-										return oldEntry.setValue(value);
-									}
-								};
-							}
-
-							@Override
-							public void remove() {
-								it.remove();
-							}
-						};
-					}
+	// the keys are unwrapped once into a hashed copy, a lookup in it doesn't scan the entries
+	static <K, V, C> ImmutableMap<K, V> unwrapKeys(Map<ContextedKey<K, C>, V> map) {
+		ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+		for (Entry<ContextedKey<K, C>, V> entry : map.entrySet())
+			builder.put(entry.getKey().getKey(), entry.getValue());
+		return builder.build();
+	}
 
-					@Override
-					public int size() {
-						return map.size();
-					}
-				};
-			}
-		};
+	// both maps are copied, their keys must not overlap
+	static <K, V, C> ImmutableMap<K, V> unwrapKeys(Map<ContextedKey<K, C>, V> map, Map<ContextedKey<K, C>, V> other) {
+		ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+		for (Entry<ContextedKey<K, C>, V> entry : map.entrySet())
+			builder.put(entry.getKey().getKey(), entry.getValue());
+		for (Entry<ContextedKey<K, C>, V> entry : other.entrySet())
+			builder.put(entry.getKey().getKey(), entry.getValue());
+		return builder.build();
 	}
 }
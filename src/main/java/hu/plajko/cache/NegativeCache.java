@@ -0,0 +1,198 @@
+package hu.plajko.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableMap;
+
+// remembers the keys the loader returned null for, and the failed ones, and answers their
+// loads with a CachedMissException until absentTimeToLive or the backoff is over. the
+// backoff doubles with every failure in a row up to maximumBackoff. a key missing with one
+// context (e.g. tenant) can still be loaded with another.
+class NegativeCache<K, V, C> {
+
+	private static class Tombstone {
+		private final Throwable failure;
+		private final int failures;
+		private final long retryAt;
+
+		Tombstone(Throwable failure, int failures, long retryAt) {
+			this.failure = failure;
+			this.failures = failures;
+			this.retryAt = retryAt;
+		}
+	}
+
+	private static final long MAXIMUM_TOMBSTONES = 100000;
+
+	private final Function<? super C, ?> contextKey;
+	private final long absentTimeToLive;
+	private final long backoff;
+	private final long maximumBackoff;
+
+	// by key, then by contextKey, so the tombstones of a key are found without a scan; a key's
+	// tombstones are dropped by Guava a while after the last one's retry time
+	private final Cache<Object, ImmutableMap<Object, Tombstone>> tombstones;
+
+	NegativeCache(Function<? super C, ?> contextKey, long absentTimeToLive, long backoff, long maximumBackoff, TimeUnit unit) {
+		this.contextKey = contextKey;
+		this.absentTimeToLive = unit.toMillis(absentTimeToLive);
+		this.backoff = unit.toMillis(backoff);
+		this.maximumBackoff = unit.toMillis(maximumBackoff);
+		// a failure count is kept for twice the longest backoff
+		this.tombstones = CacheBuilder.newBuilder() //
+				.maximumSize(MAXIMUM_TOMBSTONES) //
+				.expireAfterWrite(Math.max(this.absentTimeToLive, 2 * this.maximumBackoff) + 1, TimeUnit.MILLISECONDS) //
+				.build();
+	}
+
+	// the maps don't take nulls
+	private static Object nonNull(Object key) {
+		return (key == null) ? Void.TYPE : key;
+	}
+
+	private Object indexKey(C context) {
+		return nonNull(contextKey.apply(context));
+	}
+
+	private Tombstone tombstone(ContextedKey<K, C> key) {
+		ImmutableMap<Object, Tombstone> byContext = tombstones.getIfPresent(nonNull(key.getKey()));
+		return (byContext == null) ? null : byContext.get(indexKey(key.getContext()));
+	}
+
+	// sets or, with a null tombstone, removes the tombstone of a key in a context
+	private void update(Object key, Object indexKey, Tombstone tombstone) {
+		ConcurrentMap<Object, ImmutableMap<Object, Tombstone>> map = tombstones.asMap();
+		while (true) {
+			ImmutableMap<Object, Tombstone> old = map.get(key);
+			if (old == null) {
+				if (tombstone == null || map.putIfAbsent(key, ImmutableMap.of(indexKey, tombstone)) == null)
+					return;
+				continue;
+			}
+			if (tombstone == null && !old.containsKey(indexKey))
+				return;
+			Map<Object, Tombstone> updated = new HashMap<Object, Tombstone>(old);
+			if (tombstone == null)
+				updated.remove(indexKey);
+			else
+				updated.put(indexKey, tombstone);
+			if (updated.isEmpty() ? map.remove(key, old) : map.replace(key, old, ImmutableMap.copyOf(updated)))
+				return;
+		}
+	}
+
+	private boolean check(ContextedKey<K, C> key, boolean raise) throws CachedMissException {
+		Tombstone tombstone = tombstone(key);
+		if (tombstone == null || tombstone.retryAt <= System.currentTimeMillis())
+			return true;
+		if (!raise)
+			return false;
+		if (tombstone.failure == null)
+			throw new CachedMissException(key.getKey(), tombstone.retryAt);
+		throw new CachedMissException(key.getKey(), tombstone.retryAt, tombstone.failure);
+	}
+
+	// the key has a tombstone in its context, getAll leaves it out without calling the loader
+	boolean missing(ContextedKey<K, C> key) {
+		Tombstone tombstone = tombstone(key);
+		return tombstone != null && tombstone.retryAt > System.currentTimeMillis();
+	}
+
+	private CachedMissException absent(ContextedKey<K, C> key) {
+		long retryAt = System.currentTimeMillis() + absentTimeToLive;
+		update(nonNull(key.getKey()), indexKey(key.getContext()), new Tombstone(null, 0, retryAt));
+		return new CachedMissException(key.getKey(), retryAt);
+	}
+
+	private void failed(ContextedKey<K, C> key, Throwable failure) {
+		Tombstone previous = tombstone(key);
+		int failures = (previous == null) ? 1 : previous.failures + 1;
+		long delay = Math.min(maximumBackoff, backoff << Math.min(failures - 1, 30));
+		update(nonNull(key.getKey()), indexKey(key.getContext()), new Tombstone(failure, failures, System.currentTimeMillis() + delay));
+	}
+
+	private void loaded(ContextedKey<K, C> key) {
+		update(nonNull(key.getKey()), indexKey(key.getContext()), null);
+	}
+
+	void invalidate(ContextedKey<?, ?> key) {
+		// every context, the key may be there now
+		tombstones.invalidate(nonNull(key.getKey()));
+	}
+
+	void invalidateAll(C context) {
+		Object indexKey = indexKey(context);
+		for (Entry<Object, ImmutableMap<Object, Tombstone>> entry : tombstones.asMap().entrySet())
+			if (entry.getValue().containsKey(indexKey))
+				update(entry.getKey(), indexKey, null);
+	}
+
+	void invalidateAll() {
+		tombstones.invalidateAll();
+	}
+
+	CacheLoader<ContextedKey<K, C>, V> caching(CacheLoader<ContextedKey<K, C>, V> loader) {
+		return new ForwardingCacheLoader<ContextedKey<K, C>, V>(loader) {
+			@Override
+			public V load(ContextedKey<K, C> key) throws Exception {
+				check(key, true);
+				V value;
+				try {
+					value = super.load(key);
+				} catch (Exception e) {
+					failed(key, e);
+					throw e;
+				}
+				if (value == null)
+					throw absent(key);
+				loaded(key);
+				return value;
+			}
+
+			// the tombstoned keys are left out of the bulk load and the absent ones are tombstoned one by
+			// one. Guava 11 caches the values that were loaded, but a map without every key fails the
+			// whole getAll with an InvalidCacheLoadException: ContextedLoadingCache.getAll catches it and
+			// leaves those keys out of its result
+			@Override
+			public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+				List<ContextedKey<K, C>> loadable = new ArrayList<ContextedKey<K, C>>();
+				for (ContextedKey<K, C> key : keys)
+					if (check(key, false))
+						loadable.add(key);
+				if (loadable.isEmpty())
+					return ImmutableMap.of();
+				Map<ContextedKey<K, C>, V> values;
+				try {
+					values = super.loadAll(loadable);
+				} catch (UnsupportedOperationException e) {
+					throw e;
+				} catch (Exception e) {
+					for (ContextedKey<K, C> key : loadable)
+						failed(key, e);
+					throw e;
+				}
+				Map<ContextedKey<K, C>, V> found = new HashMap<ContextedKey<K, C>, V>();
+				for (ContextedKey<K, C> key : loadable) {
+					V value = values.get(key);
+					if (value == null)
+						absent(key);
+					else {
+						loaded(key);
+						found.put(key, value);
+					}
+				}
+				return found;
+			}
+		};
+	}
+}
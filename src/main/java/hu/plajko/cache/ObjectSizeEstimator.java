@@ -0,0 +1,204 @@
+package hu.plajko.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// rough retained size of an object graph in bytes, for a 64 bit JVM with compressed oops
+// (12 byte headers, 4 byte references, 8 byte alignment) and Latin-1 strings.
+// only SAMPLE elements of a big array or collection are walked, the rest is assumed to be
+// like them. JDK classes other than strings, arrays and collections count their own fields only.
+// the walk stops after MAX_OBJECTS objects, a bigger graph is underestimated.
+public final class ObjectSizeEstimator {
+
+	private static final int HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	private static final int SAMPLE = 16;
+	private static final int MAX_OBJECTS = 10000;
+	// a Guava entry and the ContextedKey, roughly
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static class Layout {
+		private final long size;
+		// empty if the class isn't walked
+		private final List<Field> references;
+
+		Layout(long size, List<Field> references) {
+			this.size = size;
+			this.references = references;
+		}
+	}
+
+	// kept with the class, so the layouts don't keep the classes (and their class loaders) alive
+	private static final ClassValue<Layout> layouts = new ClassValue<Layout>() {
+		@Override
+		protected Layout computeValue(Class<?> type) {
+			return computeLayout(type);
+		}
+	};
+
+	private ObjectSizeEstimator() {
+	}
+
+	// weighs the key and the value, the context is usually shared by many entries
+	public static <K, V, C> ContextedWeigher<K, V, C> weigher() {
+		return new ContextedWeigher<K, V, C>() {
+			@Override
+			public int weigh(C context, K key, V value) {
+				return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value));
+			}
+		};
+	}
+
+	private static class Pending {
+		private final Object object;
+		// how many objects like this one it stands for
+		private final double factor;
+
+		Pending(Object object, double factor) {
+			this.object = object;
+			this.factor = factor;
+		}
+	}
+
+	public static long sizeOf(Object root) {
+		if (root == null)
+			return 0;
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Deque<Pending> pending = new ArrayDeque<Pending>();
+		pending.push(new Pending(root, 1.0d));
+		double size = 0;
+		while (!pending.isEmpty()) {
+			Pending next = pending.pop();
+			Object object = next.object;
+			if (object == null || !visited.add(object))
+				continue;
+			if (visited.size() > MAX_OBJECTS)
+				break;
+			Class<?> type = object.getClass();
+			if (type == Class.class || type.isEnum())
+				continue;
+			size += next.factor * shallowSize(object);
+			if (type.isArray()) {
+				if (!type.getComponentType().isPrimitive())
+					sample(arrayElements(object), Array.getLength(object), next.factor, pending);
+			} else if (object instanceof Collection && isJdk(type)) {
+				// its internal array or nodes, roughly
+				Collection<?> collection = (Collection<?>) object;
+				size += next.factor * collection.size() * 2 * REFERENCE;
+				sample(collection.iterator(), collection.size(), next.factor, pending);
+			} else if (object instanceof Map && isJdk(type)) {
+				// the entries count their own size
+				Map<?, ?> map = (Map<?, ?>) object;
+				sample(map.entrySet().iterator(), map.size(), next.factor, pending);
+			} else if (object instanceof Map.Entry && isJdk(type)) {
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+				pending.push(new Pending(entry.getKey(), next.factor));
+				pending.push(new Pending(entry.getValue(), next.factor));
+			} else {
+				for (Field field : layout(type).references) {
+					try {
+						pending.push(new Pending(field.get(object), next.factor));
+					} catch (IllegalAccessException e) {
+						// counted as a reference only
+					}
+				}
+			}
+		}
+		return (long) size;
+	}
+
+	private static boolean isJdk(Class<?> type) {
+		String name = type.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("jdk.");
+	}
+
+	private static Iterator<?> arrayElements(Object array) {
+		return Arrays.asList((Object[]) array).iterator();
+	}
+
+	// every size / SAMPLE th element, each standing for the ones skipped
+	private static void sample(Iterator<?> elements, int size, double factor, Deque<Pending> pending) {
+		if (size <= SAMPLE) {
+			while (elements.hasNext())
+				pending.push(new Pending(elements.next(), factor));
+			return;
+		}
+		int step = size / SAMPLE;
+		int taken = 0;
+		List<Object> sampled = new ArrayList<Object>(SAMPLE);
+		for (int i = 0; elements.hasNext() && taken < SAMPLE; i++) {
+			Object element = elements.next();
+			if (i % step == 0) {
+				sampled.add(element);
+				taken++;
+			}
+		}
+		for (Object element : sampled)
+			pending.push(new Pending(element, factor * size / taken));
+	}
+
+	private static long shallowSize(Object object) {
+		Class<?> type = object.getClass();
+		if (type == String.class)
+			return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + ((String) object).length());
+		if (type.isArray()) {
+			Class<?> component = type.getComponentType();
+			return align(ARRAY_HEADER + (long) Array.getLength(object) * (component.isPrimitive() ? primitiveSize(component) : REFERENCE));
+		}
+		return layout(type).size;
+	}
+
+	private static Layout layout(Class<?> type) {
+		return layouts.get(type);
+	}
+
+	private static Layout computeLayout(Class<?> type) {
+		long size = HEADER;
+		boolean walk = !isJdk(type);
+		List<Field> references = new ArrayList<Field>();
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+				Class<?> fieldType = field.getType();
+				size += fieldType.isPrimitive() ? primitiveSize(fieldType) : REFERENCE;
+				if (walk && !fieldType.isPrimitive()) {
+					try {
+						field.setAccessible(true);
+						references.add(field);
+					} catch (RuntimeException e) {
+						// in a module that isn't open
+					}
+				}
+			}
+		}
+		return new Layout(align(size), references);
+	}
+
+	private static int primitiveSize(Class<?> type) {
+		if (type == long.class || type == double.class)
+			return 8;
+		if (type == int.class || type == float.class)
+			return 4;
+		if (type == short.class || type == char.class)
+			return 2;
+		return 1;
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+}
@@ -0,0 +1,330 @@
+package hu.plajko.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+
+// second tier for the entries the cache evicted because of its size: the serialized values
+// are written one after the other into a direct or memory mapped buffer, and when it's full
+// the writing starts over at its beginning, dropping the oldest entries.
+// only the keys and the positions stay on the heap. a value found here is moved back to the
+// cache instead of being loaded. the expiration of the cache applies here too, an expired
+// value isn't moved back. a value is only moved back to the partition it was evicted from.
+public final class OffHeapStore<K, V, C> {
+
+	private static final Logger log = LoggerFactory.getLogger(OffHeapStore.class);
+
+	private static class Slot {
+		private final PartitionKey key;
+		private final Object context;
+		private final int offset;
+		private final int length;
+		// when the value expires, Long.MAX_VALUE if it doesn't
+		private final long deadline;
+		private final long writeTime;
+
+		Slot(PartitionKey key, Object context, int offset, int length, long deadline, long writeTime) {
+			this.key = key;
+			this.context = context;
+			this.offset = offset;
+			this.length = length;
+			this.deadline = deadline;
+			this.writeTime = writeTime;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final Serializer<V> serializer;
+
+	// guarded by this
+	private final Map<PartitionKey, Slot> slots = new HashMap<PartitionKey, Slot>();
+	// in the order they were written, replaced and taken ones included
+	private final Queue<Slot> written = new ArrayDeque<Slot>();
+	private int position = 0;
+
+	// the expiration of the cache, 0 if there's none; set before the cache is used
+	private long expireAfterWriteNanos = 0;
+	private long expireAfterAccessNanos = 0;
+	// the write times of the values in the cache, kept only with expireAfterWrite
+	private final ConcurrentMap<PartitionKey, Long> writeTimes = new ConcurrentHashMap<PartitionKey, Long>();
+	// the partition of a context, set before the cache is used
+	private Function<? super C, ?> partitioner = Functions.constant(null);
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong storeCount = new AtomicLong();
+	private final AtomicLong dropCount = new AtomicLong();
+
+	OffHeapStore(int capacity, Serializer<V> serializer) {
+		this(ByteBuffer.allocateDirect(capacity), serializer);
+	}
+
+	OffHeapStore(File file, int capacity, Serializer<V> serializer) throws IOException {
+		this(map(file, capacity), serializer);
+	}
+
+	private OffHeapStore(ByteBuffer buffer, Serializer<V> serializer) {
+		this.buffer = buffer;
+		this.serializer = serializer;
+	}
+
+	private static ByteBuffer map(File file, int capacity) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} finally {
+			raf.close();
+		}
+	}
+
+	void expireAfter(long expireAfterWriteNanos, long expireAfterAccessNanos) {
+		this.expireAfterWriteNanos = Math.max(0, expireAfterWriteNanos);
+		this.expireAfterAccessNanos = Math.max(0, expireAfterAccessNanos);
+	}
+
+	void partitionBy(Function<? super C, ?> partitioner) {
+		this.partitioner = partitioner;
+	}
+
+	@SuppressWarnings("unchecked")
+	private PartitionKey partitionKey(ContextedKey<?, ?> key) {
+		return new PartitionKey(partitioner.apply((C) key.getContext()), key.getKey());
+	}
+
+	// the value of the key was loaded or put into the cache now
+	void written(ContextedKey<K, C> key) {
+		written(partitionKey(key), System.nanoTime());
+	}
+
+	private void written(PartitionKey key, long writeTime) {
+		if (expireAfterWriteNanos > 0)
+			writeTimes.put(key, writeTime);
+	}
+
+	void store(C context, K contextKey, V value) {
+		PartitionKey key = partitionKey(new ContextedKey<K, C>(contextKey, context));
+		long now = System.nanoTime();
+		Long writeTime = writeTimes.remove(key);
+		if (writeTime == null)
+			writeTime = now;
+		// the last access was before the eviction, so the value may expire earlier than this
+		long deadline = Long.MAX_VALUE;
+		if (expireAfterWriteNanos > 0)
+			deadline = writeTime + expireAfterWriteNanos;
+		if (expireAfterAccessNanos > 0)
+			deadline = Math.min(deadline, now + expireAfterAccessNanos);
+		if (deadline - now <= 0) {
+			remove(key);
+			return;
+		}
+		byte[] bytes;
+		try {
+			bytes = serializer.serialize(value);
+		} catch (IOException e) {
+			dropCount.incrementAndGet();
+			return;
+		}
+		synchronized (this) {
+			// an empty value would never be overwritten, so its slot would stay in written
+			if (bytes.length == 0 || bytes.length > buffer.capacity()) {
+				slots.remove(key);
+				dropCount.incrementAndGet();
+				return;
+			}
+			if (position + bytes.length > buffer.capacity()) {
+				// the end of the buffer is too short, it's dropped with the slots in it
+				while (!written.isEmpty() && written.peek().offset >= position)
+					drop(written.poll());
+				position = 0;
+			}
+			// the slots of the previous round that are about to be overwritten
+			while (!written.isEmpty() && written.peek().offset >= position && written.peek().offset < position + bytes.length)
+				drop(written.poll());
+			ByteBuffer target = buffer.duplicate();
+			target.position(position);
+			target.put(bytes);
+			Slot slot = new Slot(key, context, position, bytes.length, deadline, writeTime);
+			written.add(slot);
+			slots.put(key, slot);
+			position += bytes.length;
+		}
+		storeCount.incrementAndGet();
+	}
+
+	private void drop(Slot slot) {
+		if (slots.get(slot.key) == slot) {
+			slots.remove(slot.key);
+			dropCount.incrementAndGet();
+		}
+	}
+
+	// removes the value, null if it isn't here, it's expired or it can't be read
+	V take(ContextedKey<K, C> contextedKey) {
+		PartitionKey key = partitionKey(contextedKey);
+		byte[] bytes;
+		long writeTime;
+		synchronized (this) {
+			Slot slot = slots.remove(key);
+			if (slot == null || (slot.deadline != Long.MAX_VALUE && slot.deadline - System.nanoTime() <= 0)) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			writeTime = slot.writeTime;
+			bytes = new byte[slot.length];
+			ByteBuffer source = buffer.duplicate();
+			source.position(slot.offset);
+			source.get(bytes);
+		}
+		V value;
+		try {
+			value = serializer.deserialize(bytes);
+		} catch (Exception e) {
+			// a damaged copy, the loader gets the value
+			log.warn("dropped an unreadable off-heap value of " + contextedKey, e);
+			dropCount.incrementAndGet();
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		// back in the cache, but it was written when it was loaded
+		written(key, writeTime);
+		return value;
+	}
+
+	void remove(ContextedKey<?, ?> key) {
+		remove(partitionKey(key));
+	}
+
+	private synchronized void remove(PartitionKey key) {
+		slots.remove(key);
+		writeTimes.remove(key);
+	}
+
+	private synchronized void removeSlot(PartitionKey key) {
+		slots.remove(key);
+	}
+
+	synchronized void removeAll(C context) {
+		Iterator<Slot> it = slots.values().iterator();
+		while (it.hasNext())
+			if (Objects.equal(context, it.next().context))
+				it.remove();
+	}
+
+	synchronized void clear() {
+		slots.clear();
+		writeTimes.clear();
+		written.clear();
+		position = 0;
+	}
+
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	public long hitCount() {
+		return hitCount.get();
+	}
+
+	public long missCount() {
+		return missCount.get();
+	}
+
+	public long storeCount() {
+		return storeCount.get();
+	}
+
+	// entries overwritten, too big or not serializable
+	public long dropCount() {
+		return dropCount.get();
+	}
+
+	// looks for the keys here before the loader is called
+	CacheLoader<ContextedKey<K, C>, V> reading(final CacheLoader<ContextedKey<K, C>, V> loader) {
+		return new ForwardingCacheLoader<ContextedKey<K, C>, V>(loader) {
+			@Override
+			public V load(ContextedKey<K, C> key) throws Exception {
+				V value = take(key);
+				if (value != null)
+					return value;
+				value = super.load(key);
+				written(key);
+				return value;
+			}
+
+			@Override
+			public Map<ContextedKey<K, C>, V> loadAll(Iterable<? extends ContextedKey<K, C>> keys) throws Exception {
+				Map<ContextedKey<K, C>, V> values = new HashMap<ContextedKey<K, C>, V>();
+				List<ContextedKey<K, C>> missing = new ArrayList<ContextedKey<K, C>>();
+				Set<ContextedKey<K, C>> seen = new HashSet<ContextedKey<K, C>>();
+				for (ContextedKey<K, C> key : keys) {
+					if (!seen.add(key))
+						continue;
+					V value = take(key);
+					if (value != null)
+						values.put(key, value);
+					else
+						missing.add(key);
+				}
+				if (missing.isEmpty())
+					return values;
+				try {
+					values.putAll(super.loadAll(missing));
+				} catch (UnsupportedOperationException e) {
+					// no bulk loader, the values already taken from here mustn't be lost
+					for (ContextedKey<K, C> key : missing)
+						values.put(key, super.load(key));
+				}
+				for (ContextedKey<K, C> key : missing)
+					written(key);
+				return values;
+			}
+		};
+	}
+
+	// keeps the entries evicted because of the size, the others (expired ones included) are gone for good
+	ContextedRemovalListener<K, V, C> storing(final ContextedRemovalListener<K, V, C> listener) {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				if (cause == RemovalCause.SIZE && value != null)
+					store(context, key, value);
+				else if (cause == RemovalCause.REPLACED)
+					// the write time is the new value's
+					removeSlot(partitionKey(new ContextedKey<K, C>(key, context)));
+				else
+					remove(new ContextedKey<K, C>(key, context));
+				if (listener != null)
+					listener.onRemoval(context, key, value, cause);
+			}
+		};
+	}
+}
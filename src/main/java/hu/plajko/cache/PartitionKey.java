@@ -0,0 +1,33 @@
+package hu.plajko.cache;
+
+import com.google.common.base.Objects;
+
+// a key in its partition: ContextedKey.equals ignores the context, but a key of a partitioned
+// cache is a different entry in each partition. the partition is null if there are none.
+final class PartitionKey {
+
+	private final Object partition;
+	private final Object key;
+
+	PartitionKey(Object partition, Object key) {
+		this.partition = partition;
+		this.key = key;
+	}
+
+	Object getKey() {
+		return key;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(partition, key);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PartitionKey))
+			return false;
+		PartitionKey other = (PartitionKey) obj;
+		return Objects.equal(partition, other.partition) && Objects.equal(key, other.key);
+	}
+}
@@ -0,0 +1,193 @@
+package hu.plajko.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+// queues the removal notifications and passes them to the listener in batches on a daemon
+// thread, so the thread that triggered the cleanup doesn't wait for the listener. when the
+// queue is full the notifying thread waits up to maxWait, then the notification is dropped.
+// after shutdown the notifications are passed to the listener on the notifying thread.
+public final class RemovalDispatcher<K, V, C> {
+
+	private static final Logger log = LoggerFactory.getLogger(RemovalDispatcher.class);
+
+	private static final int BATCH_SIZE = 256;
+
+	private static class Notification<K, V, C> {
+		private final C context;
+		private final K key;
+		private final V value;
+		private final RemovalCause cause;
+
+		Notification(C context, K key, V value, RemovalCause cause) {
+			this.context = context;
+			this.key = key;
+			this.value = value;
+			this.cause = cause;
+		}
+	}
+
+	private final ContextedRemovalListener<K, V, C> listener;
+	private final int capacity;
+	private final long maxWaitNanos;
+
+	// bounded by the size counter, the queue itself doesn't lock
+	private final Queue<Notification<K, V, C>> queue = new ConcurrentLinkedQueue<Notification<K, V, C>>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicBoolean started = new AtomicBoolean();
+	private final Thread thread;
+	// set before the dispatcher parks on an empty queue, a notification added then unparks it
+	private volatile boolean idle = false;
+	private volatile boolean shutdown = false;
+
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	RemovalDispatcher(ContextedRemovalListener<K, V, C> listener, int capacity, long maxWait, TimeUnit unit) {
+		this.listener = listener;
+		this.capacity = capacity;
+		this.maxWaitNanos = unit.toNanos(maxWait);
+		// created here, so the notifying threads can unpark it as soon as it's started
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "removal-dispatcher");
+		thread.setDaemon(true);
+	}
+
+	private void start() {
+		if (started.compareAndSet(false, true))
+			thread.start();
+	}
+
+	private void offer(Notification<K, V, C> notification) {
+		if (shutdown) {
+			deliver(notification);
+			return;
+		}
+		start();
+		long deadline = 0;
+		while (true) {
+			int current = size.get();
+			if (current < capacity) {
+				if (size.compareAndSet(current, current + 1))
+					break;
+				continue;
+			}
+			// full: back pressure until maxWait is over
+			long now = System.nanoTime();
+			if (deadline == 0)
+				deadline = now + maxWaitNanos;
+			if (now - deadline >= 0) {
+				droppedCount.incrementAndGet();
+				return;
+			}
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(Math.min(deadline - now, TimeUnit.MICROSECONDS.toNanos(100)));
+		}
+		queue.add(notification);
+		if (idle)
+			LockSupport.unpark(thread);
+		// shut down meanwhile, the dispatcher may have stopped before it was added
+		if (shutdown)
+			drain();
+	}
+
+	// delivers the queued notifications, then stops the thread
+	void shutdown() {
+		shutdown = true;
+		if (!started.compareAndSet(false, true)) {
+			LockSupport.unpark(thread);
+			Uninterruptibles.joinUninterruptibly(thread);
+		}
+		drain();
+	}
+
+	private void drain() {
+		Notification<K, V, C> notification;
+		while ((notification = queue.poll()) != null) {
+			size.decrementAndGet();
+			deliver(notification);
+		}
+	}
+
+	private void deliver(Notification<K, V, C> n) {
+		try {
+			listener.onRemoval(n.context, n.key, n.value, n.cause);
+			deliveredCount.incrementAndGet();
+		} catch (Throwable t) {
+			// an Error of the listener mustn't stop the dispatching either
+			failedCount.incrementAndGet();
+			log.warn("removal listener failed", t);
+		}
+	}
+
+	private void dispatch() {
+		List<Notification<K, V, C>> batch = new ArrayList<Notification<K, V, C>>(BATCH_SIZE);
+		while (true) {
+			Notification<K, V, C> notification;
+			while (batch.size() < BATCH_SIZE && (notification = queue.poll()) != null)
+				batch.add(notification);
+			if (batch.isEmpty()) {
+				// the queue is drained by now, the ones added later are delivered by their threads
+				if (shutdown)
+					return;
+				// the queue is checked again after idle is set, a notification added before it is seen
+				// here, one added after it unparks the thread
+				idle = true;
+				if (queue.isEmpty() && !shutdown)
+					LockSupport.park(this);
+				idle = false;
+				continue;
+			}
+			size.addAndGet(-batch.size());
+			for (Notification<K, V, C> n : batch)
+				deliver(n);
+			batch.clear();
+		}
+	}
+
+	ContextedRemovalListener<K, V, C> queueing() {
+		return new ContextedRemovalListener<K, V, C>() {
+			@Override
+			public void onRemoval(C context, K key, V value, RemovalCause cause) {
+				offer(new Notification<K, V, C>(context, key, value, cause));
+			}
+		};
+	}
+
+	public long deliveredCount() {
+		return deliveredCount.get();
+	}
+
+	// the queue was full for maxWait
+	public long droppedCount() {
+		return droppedCount.get();
+	}
+
+	// the listener threw an exception
+	public long failedCount() {
+		return failedCount.get();
+	}
+
+	public int pendingCount() {
+		return size.get();
+	}
+}
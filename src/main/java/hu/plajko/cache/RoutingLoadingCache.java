@@ -0,0 +1,226 @@
+package hu.plajko.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Function;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+// a LoadingCache spread over several independent caches
+abstract class RoutingLoadingCache<K, V> extends AbstractLoadingCache<K, V> {
+
+	// the cache that holds the key, null if it doesn't exist and create is false
+	abstract LoadingCache<K, V> route(Object key, boolean create);
+
+	abstract Collection<LoadingCache<K, V>> caches();
+
+	// Cache.get(K) is deprecated in this Guava, LoadingCache's isn't
+	@Override
+	@SuppressWarnings("deprecation")
+	public V get(K key) throws ExecutionException {
+		return route(key, true).get(key);
+	}
+
+	@Override
+	public V getIfPresent(K key) {
+		LoadingCache<K, V> cache = route(key, false);
+		return (cache == null) ? null : cache.getIfPresent(key);
+	}
+
+	@Override
+	public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+		Map<K, V> result = new HashMap<K, V>();
+		for (Entry<LoadingCache<K, V>, List<K>> group : group(keys, true).entrySet())
+			result.putAll(group.getKey().getAll(group.getValue()));
+		return inOrder(keys, result);
+	}
+
+	@Override
+	public ImmutableMap<K, V> getAllPresent(Iterable<? extends K> keys) {
+		Map<K, V> result = new HashMap<K, V>();
+		for (Entry<LoadingCache<K, V>, List<K>> group : group(keys, false).entrySet())
+			result.putAll(group.getKey().getAllPresent(group.getValue()));
+		return inOrder(keys, result);
+	}
+
+	private Map<LoadingCache<K, V>, List<K>> group(Iterable<? extends K> keys, boolean create) {
+		Map<LoadingCache<K, V>, List<K>> groups = new LinkedHashMap<LoadingCache<K, V>, List<K>>();
+		for (K key : keys) {
+			LoadingCache<K, V> cache = route(key, create);
+			if (cache == null)
+				continue;
+			List<K> group = groups.get(cache);
+			if (group == null) {
+				group = new ArrayList<K>();
+				groups.put(cache, group);
+			}
+			group.add(key);
+		}
+		return groups;
+	}
+
+	// the result keeps the order of the requested keys, like the one of a single cache
+	private ImmutableMap<K, V> inOrder(Iterable<? extends K> keys, Map<K, V> result) {
+		ImmutableMap.Builder<K, V> ordered = ImmutableMap.builder();
+		for (K key : keys) {
+			// removed, so a key requested twice is added once
+			V value = result.remove(key);
+			if (value != null)
+				ordered.put(key, value);
+		}
+		return ordered.build();
+	}
+
+	@Override
+	public void put(K key, V value) {
+		route(key, true).put(key, value);
+	}
+
+	@Override
+	public void refresh(K key) {
+		route(key, true).refresh(key);
+	}
+
+	@Override
+	public void invalidate(Object key) {
+		LoadingCache<K, V> cache = route(key, false);
+		if (cache != null)
+			cache.invalidate(key);
+	}
+
+	@Override
+	public void invalidateAll(Iterable<?> keys) {
+		for (Object key : keys)
+			invalidate(key);
+	}
+
+	@Override
+	public void invalidateAll() {
+		for (LoadingCache<K, V> cache : caches())
+			cache.invalidateAll();
+	}
+
+	@Override
+	public long size() {
+		long size = 0;
+		for (LoadingCache<K, V> cache : caches())
+			size += cache.size();
+		return size;
+	}
+
+	@Override
+	public CacheStats stats() {
+		CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+		for (LoadingCache<K, V> cache : caches())
+			stats = stats.plus(cache.stats());
+		return stats;
+	}
+
+	@Override
+	public void cleanUp() {
+		for (LoadingCache<K, V> cache : caches())
+			cache.cleanUp();
+	}
+
+	@Override
+	public ConcurrentMap<K, V> asMap() {
+		return new RoutingMap();
+	}
+
+	private class RoutingMap extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+		private ConcurrentMap<K, V> mapFor(Object key, boolean create) {
+			LoadingCache<K, V> cache = route(key, create);
+			return (cache == null) ? null : cache.asMap();
+		}
+
+		@Override
+		public V get(Object key) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return (map == null) ? null : map.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return map != null && map.containsKey(key);
+		}
+
+		@Override
+		public V put(K key, V value) {
+			return mapFor(key, true).put(key, value);
+		}
+
+		@Override
+		public V putIfAbsent(K key, V value) {
+			return mapFor(key, true).putIfAbsent(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return (map == null) ? null : map.remove(key);
+		}
+
+		@Override
+		public boolean remove(Object key, Object value) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return map != null && map.remove(key, value);
+		}
+
+		@Override
+		public boolean replace(K key, V oldValue, V newValue) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return map != null && map.replace(key, oldValue, newValue);
+		}
+
+		@Override
+		public V replace(K key, V value) {
+			ConcurrentMap<K, V> map = mapFor(key, false);
+			return (map == null) ? null : map.replace(key, value);
+		}
+
+		@Override
+		public void clear() {
+			invalidateAll();
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return new AbstractSet<Entry<K, V>>() {
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					return Iterators.concat(Iterators.transform(caches().iterator(), new Function<LoadingCache<K, V>, Iterator<Entry<K, V>>>() {
+						@Override
+						public Iterator<Entry<K, V>> apply(LoadingCache<K, V> cache) {
+							return cache.asMap().entrySet().iterator();
+						}
+					}));
+				}
+
+				@Override
+				public int size() {
+					int size = 0;
+					for (LoadingCache<K, V> cache : caches())
+						size += cache.asMap().size();
+					return size;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package hu.plajko.cache;
+
+import java.io.IOException;
+
+// turns the values into bytes for the off-heap tier and back
+public interface Serializer<T> {
+
+	public byte[] serialize(T value) throws IOException;
+
+	public T deserialize(byte[] bytes) throws IOException;
+
+}
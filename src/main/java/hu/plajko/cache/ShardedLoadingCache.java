@@ -0,0 +1,30 @@
+package hu.plajko.cache;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+
+// keys are spread by hash over independent caches, each with its own locks and queues
+class ShardedLoadingCache<K, V> extends RoutingLoadingCache<K, V> {
+
+	private final List<LoadingCache<K, V>> shards;
+
+	ShardedLoadingCache(List<LoadingCache<K, V>> shards) {
+		this.shards = ImmutableList.copyOf(shards);
+	}
+
+	@Override
+	LoadingCache<K, V> route(Object key, boolean create) {
+		// mixed, so the shard doesn't depend on the same bits as the segment inside it
+		int h = key.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		return shards.get((h & Integer.MAX_VALUE) % shards.size());
+	}
+
+	@Override
+	Collection<LoadingCache<K, V>> caches() {
+		return shards;
+	}
+}
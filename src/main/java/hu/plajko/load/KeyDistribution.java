@@ -0,0 +1,79 @@
+package hu.plajko.load;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+// the keys of the requests, from 0 to keys - 1
+public abstract class KeyDistribution {
+
+	public abstract int next(Random random);
+
+	// uniform, zipf[:exponent], hotspot[:hotFraction:hotRate] or scan
+	public static KeyDistribution parse(String spec, int keys) {
+		Preconditions.checkArgument(keys > 0, "keys must be positive");
+		String[] parts = spec.split(":");
+		if ("uniform".equals(parts[0]))
+			return uniform(keys);
+		if ("zipf".equals(parts[0]))
+			return zipf(keys, (parts.length > 1) ? Double.parseDouble(parts[1]) : 0.99d);
+		if ("hotspot".equals(parts[0]))
+			return hotspot(keys, (parts.length > 1) ? Double.parseDouble(parts[1]) : 0.2d, (parts.length > 2) ? Double.parseDouble(parts[2]) : 0.8d);
+		if ("scan".equals(parts[0]))
+			return scan(keys);
+		throw new IllegalArgumentException("unknown key distribution: " + spec);
+	}
+
+	public static KeyDistribution uniform(final int keys) {
+		return new KeyDistribution() {
+			@Override
+			public int next(Random random) {
+				return random.nextInt(keys);
+			}
+		};
+	}
+
+	// key i is requested in proportion to 1 / (i + 1)^exponent, from a precomputed CDF
+	public static KeyDistribution zipf(int keys, double exponent) {
+		final double[] cdf = new double[keys];
+		double sum = 0;
+		for (int i = 0; i < keys; i++)
+			cdf[i] = (sum += 1.0d / Math.pow(i + 1, exponent));
+		for (int i = 0; i < keys; i++)
+			cdf[i] /= sum;
+		return new KeyDistribution() {
+			@Override
+			public int next(Random random) {
+				int i = Arrays.binarySearch(cdf, random.nextDouble());
+				return Math.min((i >= 0) ? i : -i - 1, cdf.length - 1);
+			}
+		};
+	}
+
+	// hotRate of the requests go to the first hotFraction of the keys
+	public static KeyDistribution hotspot(final int keys, double hotFraction, final double hotRate) {
+		Preconditions.checkArgument(hotFraction > 0 && hotFraction < 1, "hotFraction must be between 0 and 1");
+		final int hot = Math.max(1, (int) (keys * hotFraction));
+		return new KeyDistribution() {
+			@Override
+			public int next(Random random) {
+				if (hot == keys || random.nextDouble() < hotRate)
+					return random.nextInt(hot);
+				return hot + random.nextInt(keys - hot);
+			}
+		};
+	}
+
+	// every key in order, then again, shared by the threads
+	public static KeyDistribution scan(final int keys) {
+		final AtomicLong next = new AtomicLong();
+		return new KeyDistribution() {
+			@Override
+			public int next(Random random) {
+				return (int) (next.getAndIncrement() % keys);
+			}
+		};
+	}
+}
@@ -0,0 +1,65 @@
+package hu.plajko.load;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// the time a simulated backend call takes, in nanoseconds
+public abstract class LatencyDistribution {
+
+	public abstract long nextNanos(Random random);
+
+	// in milliseconds: fixed:ms, uniform:min:max, exponential:mean or lognormal:median:sigma
+	public static LatencyDistribution parse(String spec) {
+		String[] parts = spec.split(":");
+		if ("fixed".equals(parts[0]))
+			return fixed(millis(parts[1]));
+		if ("uniform".equals(parts[0]))
+			return uniform(millis(parts[1]), millis(parts[2]));
+		if ("exponential".equals(parts[0]))
+			return exponential(millis(parts[1]));
+		if ("lognormal".equals(parts[0]))
+			return lognormal(millis(parts[1]), Double.parseDouble(parts[2]));
+		throw new IllegalArgumentException("unknown latency distribution: " + spec);
+	}
+
+	private static long millis(String value) {
+		return (long) (Double.parseDouble(value) * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	public static LatencyDistribution fixed(final long nanos) {
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return nanos;
+			}
+		};
+	}
+
+	public static LatencyDistribution uniform(final long minNanos, final long maxNanos) {
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return minNanos + (long) (random.nextDouble() * (maxNanos - minNanos));
+			}
+		};
+	}
+
+	public static LatencyDistribution exponential(final long meanNanos) {
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return (long) (-Math.log(1.0d - random.nextDouble()) * meanNanos);
+			}
+		};
+	}
+
+	// a long tail, like most real backends
+	public static LatencyDistribution lognormal(final long medianNanos, final double sigma) {
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return (long) (medianNanos * Math.exp(sigma * random.nextGaussian()));
+			}
+		};
+	}
+}
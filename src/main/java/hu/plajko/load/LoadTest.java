@@ -0,0 +1,249 @@
+package hu.plajko.load;
+
+import hu.plajko.cache.ConcurrentMapCacheBackend;
+import hu.plajko.cache.ContextedCacheBuilder;
+import hu.plajko.cache.ContextedCacheLoader;
+import hu.plajko.cache.ContextedLoadingCache;
+import hu.plajko.cache.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+// runs a workload against a cache and reports the throughput and the latency percentiles,
+// e.g. cache=sharded distribution=hotspot:0.1:0.9 rate=50000 loaderLatency=exponential:5
+// see LoadTestConfig for the options
+public class LoadTest {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+	private static interface CacheUnderTest {
+		public Object get(int context, Integer key) throws Exception;
+
+		public Map<Integer, ?> getAll(int context, List<Integer> keys) throws Exception;
+
+		public CacheStats stats();
+	}
+
+	private final LoadTestConfig config;
+	private final KeyDistribution keys;
+	private final LatencyDistribution loaderLatency;
+	private final CacheUnderTest cache;
+
+	public LoadTest(LoadTestConfig config) {
+		this.config = config;
+		this.keys = KeyDistribution.parse(config.distribution, config.keys);
+		this.loaderLatency = LatencyDistribution.parse(config.loaderLatency);
+		this.cache = createCache();
+	}
+
+	private final ThreadLocal<Random> loaderRandom = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	// a backend call, a bulk one takes as long as a single one
+	private void backendCall() {
+		long nanos = loaderLatency.nextNanos(loaderRandom.get());
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			LockSupport.parkNanos(nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	private byte[] value() {
+		return new byte[config.valueSize];
+	}
+
+	private CacheBuilder<Object, Object> cacheBuilder() {
+		return cacheBuilder(true);
+	}
+
+	// the shards share a maximumSize set on the ContextedCacheBuilder
+	private CacheBuilder<Object, Object> cacheBuilder(boolean sized) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+		if (sized)
+			builder.maximumSize(config.maximumSize);
+		if (config.expireAfterWrite > 0)
+			builder.expireAfterWrite(config.expireAfterWrite, TimeUnit.MILLISECONDS);
+		return builder;
+	}
+
+	private CacheUnderTest createCache() {
+		if ("plain".equals(config.cache)) {
+			final LoadingCache<Integer, byte[]> plain = cacheBuilder().build(new CacheLoader<Integer, byte[]>() {
+				@Override
+				public byte[] load(Integer key) {
+					backendCall();
+					return value();
+				}
+
+				@Override
+				public Map<Integer, byte[]> loadAll(Iterable<? extends Integer> keys) {
+					backendCall();
+					Map<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+					for (Integer key : keys)
+						values.put(key, value());
+					return values;
+				}
+			});
+			return new CacheUnderTest() {
+				@Override
+				public Object get(int context, Integer key) throws Exception {
+					return plain.get(key);
+				}
+
+				@Override
+				public Map<Integer, ?> getAll(int context, List<Integer> keys) throws Exception {
+					return plain.getAll(keys);
+				}
+
+				@Override
+				public CacheStats stats() {
+					return plain.stats();
+				}
+			};
+		}
+
+		ContextedCacheBuilder<Integer, byte[], Integer> builder;
+		if ("concurrentmap".equals(config.cache)) {
+			ConcurrentMapCacheBackend backend = new ConcurrentMapCacheBackend().maximumSize(config.maximumSize);
+			if (config.expireAfterWrite > 0)
+				backend.expireAfterWrite(config.expireAfterWrite, TimeUnit.MILLISECONDS);
+			builder = ContextedCacheBuilder.<Integer, byte[], Integer> from(backend);
+		} else
+			builder = ContextedCacheBuilder.<Integer, byte[], Integer> from(cacheBuilder(!"sharded".equals(config.cache)));
+		if ("sharded".equals(config.cache))
+			builder.shards(config.shards).maximumSize(config.maximumSize);
+		else if (!"contexted".equals(config.cache) && !"concurrentmap".equals(config.cache))
+			throw new IllegalArgumentException("unknown cache: " + config.cache);
+		final ContextedLoadingCache<Integer, byte[], Integer> contexted = builder.build(new ContextedCacheLoader<Integer, byte[], Integer>() {
+			@Override
+			public byte[] load(Integer context, Integer key) {
+				backendCall();
+				return value();
+			}
+
+			@Override
+			public Map<Integer, byte[]> loadAll(Integer context, Iterable<? extends Integer> keys) {
+				backendCall();
+				Map<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+				for (Integer key : keys)
+					values.put(key, value());
+				return values;
+			}
+		});
+		return new CacheUnderTest() {
+			@Override
+			public Object get(int context, Integer key) throws Exception {
+				return contexted.get(context, key);
+			}
+
+			@Override
+			public Map<Integer, ?> getAll(int context, List<Integer> keys) throws Exception {
+				return contexted.getAll(context, keys);
+			}
+
+			@Override
+			public CacheStats stats() {
+				return contexted.stats();
+			}
+		};
+	}
+
+	public void run() throws InterruptedException {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final long start = System.nanoTime();
+		final long measureFrom = start + TimeUnit.SECONDS.toNanos(config.warmup);
+		final long end = measureFrom + TimeUnit.SECONDS.toNanos(config.duration);
+		// open loop: every thread has its own schedule, a late request is still counted from its scheduled time
+		final long interval = (config.rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) * config.threads / config.rate) : 0;
+		final CountDownLatch done = new CountDownLatch(config.threads);
+
+		for (int t = 0; t < config.threads; t++) {
+			final Random random = new Random(config.seed + t);
+			final long offset = (interval > 0) ? interval * t / config.threads : 0;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long scheduled = start + offset;
+						List<Integer> batch = new ArrayList<Integer>(config.batch);
+						while (true) {
+							long now = System.nanoTime();
+							if (interval > 0) {
+								if (scheduled - now > 0) {
+									LockSupport.parkNanos(scheduled - now);
+									now = System.nanoTime();
+								}
+							} else
+								scheduled = now;
+							if (now - end >= 0)
+								return;
+							int context = random.nextInt(config.contexts);
+							try {
+								if (config.batch > 1) {
+									batch.clear();
+									for (int i = 0; i < config.batch; i++)
+										batch.add(keys.next(random));
+									cache.getAll(context, batch);
+								} else
+									cache.get(context, keys.next(random));
+							} catch (Exception e) {
+								failures.incrementAndGet();
+							}
+							long finished = System.nanoTime();
+							if (scheduled - measureFrom >= 0) {
+								latencies.record(finished - scheduled);
+								requests.incrementAndGet();
+							}
+							scheduled += interval;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load" + t);
+			worker.start();
+		}
+
+		LockSupport.parkNanos(measureFrom - System.nanoTime());
+		CacheStats before = cache.stats();
+		done.await();
+
+		double seconds = (double) config.duration;
+		CacheStats stats = cache.stats().minus(before);
+		log.info("{}", config);
+		log.info("throughput: {} requests/s, {} failed", String.format("%.1f", requests.get() / seconds), failures.get());
+		log.info("latency (us): p50={} p90={} p99={} p99.9={} max={}", new Object[] { micros(latencies.percentile(50)), micros(latencies.percentile(90)),
+				micros(latencies.percentile(99)), micros(latencies.percentile(99.9)), micros(latencies.percentile(100)) });
+		log.info("hit rate: {}, {}", String.format("%.3f", stats.hitRate()), stats);
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadTest(LoadTestConfig.parse(args)).run();
+	}
+}
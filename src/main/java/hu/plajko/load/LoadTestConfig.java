@@ -0,0 +1,108 @@
+package hu.plajko.load;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import com.google.common.base.Objects;
+
+// the options of a load test, from name=value arguments and an optional config=file.properties,
+// the arguments override the file
+public class LoadTestConfig {
+
+	// plain, contexted, sharded or concurrentmap
+	public String cache = "contexted";
+	public int shards = 4;
+	public long maximumSize = 1000;
+	// milliseconds, 0 if the entries don't expire
+	public long expireAfterWrite = 0;
+
+	public int keys = 10000;
+	// see KeyDistribution.parse
+	public String distribution = "zipf:0.99";
+	// keys per request, getAll if more than 1
+	public int batch = 1;
+	public int contexts = 10;
+	public int valueSize = 100;
+
+	// see LatencyDistribution.parse
+	public String loaderLatency = "lognormal:2:0.5";
+
+	public int threads = 10;
+	// requests per second of all threads, 0 for a closed loop
+	public double rate = 0;
+	// seconds
+	public long warmup = 2;
+	public long duration = 10;
+	public long seed = 0xcafe;
+
+	public static LoadTestConfig parse(String[] args) throws IOException {
+		Properties properties = new Properties();
+		Properties arguments = new Properties();
+		for (String arg : args) {
+			String option = arg.startsWith("--") ? arg.substring(2) : arg;
+			int separator = option.indexOf('=');
+			if (separator < 0)
+				throw new IllegalArgumentException("expected name=value: " + arg);
+			arguments.setProperty(option.substring(0, separator), option.substring(separator + 1));
+		}
+		String file = arguments.getProperty("config");
+		if (file != null) {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		properties.putAll(arguments);
+		properties.remove("config");
+
+		LoadTestConfig config = new LoadTestConfig();
+		for (String name : properties.stringPropertyNames())
+			config.set(name, properties.getProperty(name).trim());
+		return config;
+	}
+
+	private void set(String name, String value) {
+		try {
+			Field field = LoadTestConfig.class.getField(name);
+			Class<?> type = field.getType();
+			if (type == String.class)
+				field.set(this, value);
+			else if (type == int.class)
+				field.setInt(this, Integer.parseInt(value));
+			else if (type == long.class)
+				field.setLong(this, Long.parseLong(value));
+			else if (type == double.class)
+				field.setDouble(this, Double.parseDouble(value));
+		} catch (NoSuchFieldException e) {
+			throw new IllegalArgumentException("unknown option: " + name);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)//
+				.add("cache", cache)//
+				.add("shards", shards)//
+				.add("maximumSize", maximumSize)//
+				.add("expireAfterWrite", expireAfterWrite)//
+				.add("keys", keys)//
+				.add("distribution", distribution)//
+				.add("batch", batch)//
+				.add("contexts", contexts)//
+				.add("valueSize", valueSize)//
+				.add("loaderLatency", loaderLatency)//
+				.add("threads", threads)//
+				.add("rate", rate)//
+				.add("warmup", warmup)//
+				.add("duration", duration)//
+				.add("seed", seed)//
+				.toString();
+	}
+}